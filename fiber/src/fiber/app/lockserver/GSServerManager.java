@@ -3,7 +3,9 @@ package fiber.app.lockserver;
 import java.util.HashMap;
 import java.util.Map;
 import fiber.io.BeanHandler;
+import fiber.io.DispatchTable;
 import fiber.io.IOPoller;
+import fiber.io.IOPollerGroup;
 import fiber.io.IOSession;
 import fiber.io.ServerManager;
 import static fiber.io.Log.log;
@@ -14,6 +16,14 @@ public class GSServerManager extends ServerManager {
 		super(e, handlerStub);
 	}
 	
+	public GSServerManager(IOPollerGroup group, Map<Integer, BeanHandler<?>> handlerStub) {
+		super(group, handlerStub);
+	}
+	
+	public GSServerManager(IOPollerGroup group, DispatchTable table) {
+		super(group, table);
+	}
+	
 	private final HashMap<Integer, IOSession> gs2SessionMap = new HashMap<Integer, IOSession>();
 	private final HashMap<IOSession, Integer> session2gsMap = new HashMap<IOSession, Integer>();
 	@Override
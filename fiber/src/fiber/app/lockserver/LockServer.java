@@ -1,8 +1,10 @@
 package fiber.app.lockserver;
 
 import fiber.handler.client.AllHandlers;
+import fiber.io.Const;
 import fiber.io.IOConfig;
 import fiber.io.IOPoller;
+import fiber.io.IOPollerGroup;
 import fiber.io.ServerManager;
 
 public final class LockServer {
@@ -13,11 +15,15 @@ public final class LockServer {
 		String addr = "0.0.0.0";
 		short port = 2222;
 		
-		IOPoller poller = new IOPoller(1);
-		ServerManager server = new GSServerManager(poller, AllHandlers.get());
+		// LockManager不是线程安全的, 只能在主线程里访问, 而消息处理在连接所在的IOPoller线程里执行.
+		// 故默认只有一个IOPoller, 由主线程驱动. 只有消息处理不直接访问LockManager时才能增加.
+		IOPollerGroup pollers = new IOPollerGroup(Const.getProperty("lockserver_poller_num", 1, 1, 256), IOPollerGroup.Policy.ROUND_ROBIN);
+		IOPoller poller = pollers.get(0);
+		ServerManager server = new GSServerManager(pollers, AllHandlers.getTable());
 		IOConfig config = server.getConfig();
 		config.setAddr(addr, port);
 		server.startServer();
+		pollers.runBackground(1);
 		
 		while(true) {
 			poller.poll(1000);
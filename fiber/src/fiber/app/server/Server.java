@@ -1,12 +1,11 @@
 package fiber.app.server;
 
-import java.util.Map;
-
 import fiber.bean.SessionInfo;
 import fiber.handler.server.AllHandlers;
-import fiber.io.BeanHandler;
+import fiber.io.Const;
+import fiber.io.DispatchTable;
 import fiber.io.IOConfig;
-import fiber.io.IOPoller;
+import fiber.io.IOPollerGroup;
 import fiber.io.IOSession;
 import static fiber.io.Log.log;
 import fiber.io.ServerManager;
@@ -22,14 +21,16 @@ public class Server {
 			}
 
 			//final String LUA_FILE = args[2];
-			IOPoller poller = new IOPoller(1);
+			// handler按单线程分发编写, 多个poller会并发调用它们. 开启io_in_task_queue按会话排序后才能调大.
+			IOPollerGroup pollers = new IOPollerGroup(Const.getProperty("server_poller_num", 1, 1, 256),
+				Const.getProperty("server_poller_least_loaded", 0) != 0 ? IOPollerGroup.Policy.LEAST_LOADED : IOPollerGroup.Policy.ROUND_ROBIN);
 
-			final Map<Integer, BeanHandler<?>> handlerStub = AllHandlers.get();
+			final DispatchTable table = AllHandlers.getTable();
 			//for(int i = 0 ; i < 8 ; i++)
 			{	
 				String addr = "0.0.0.0";
 				short port = 1314;
-				ServerManager server = new ServerManager(poller, handlerStub) {
+				ServerManager server = new ServerManager(pollers, table) {
 					protected void onAddSession(IOSession s) {
 						for(int i = 0 ; i < 10 ; i++) {
 							SessionInfo si = new SessionInfo();
@@ -53,7 +54,7 @@ public class Server {
 			//LuaState.setBaseDir(new File(LUA_FILE).getParent());
 			//LuaState.setInitLuaFile(LUA_FILE);
 			log.info("init succ...");
-			poller.runBackground();
+			pollers.runBackground();
 			
 		} catch (Exception e2) {
 			e2.printStackTrace();
@@ -3,7 +3,10 @@ package fiber.common;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import fiber.io.Const;
 import static fiber.io.Log.log;
@@ -16,29 +19,137 @@ public class TaskPool {
 	// 考虑意外情况下数据库崩溃或者网络出问题,而取数据是同步操作,会导致大量线程阻塞
 	// 如果使用CacheThreadPool,在极端情况下,可能导致创建过多的线程而崩溃.
 	// 考虑再三,选择了每二个方案.
-
+	// 在支持虚拟线程的jdk(21+)上, 可以设置block_virtual_thread=1,
+	// 让可能阻塞的任务运行在虚拟线程上, 阻塞时不占用平台线程, 不再受block_thread_num限制.
+	
 	// 比较关键,而且不会阻塞或者可以保证只阻塞很短时间的任务
 	// 使用noblockExecutor调度.
 	private static final ExecutorService noblockExecutor = Executors.newFixedThreadPool(Const.getProperty("noblock_thread_num", Runtime.getRuntime().availableProcessors()));
-	private static final ExecutorService blockExecutor = Executors.newFixedThreadPool(Const.getProperty("block_thread_num", 64));
+	private static final boolean block_virtual_thread = Const.getProperty("block_virtual_thread", 0) != 0;
+	private static final ExecutorService blockExecutor = createBlockExecutor();
+	// 只用于周期任务, 延迟任务见schedule
 	private static final ScheduledExecutorService normalScheduleExecutor = Executors.newScheduledThreadPool(Const.getProperty("schedule_thread_num", 2));
+	// 执行时间超过此值(毫秒)的阻塞任务计为慢任务.
+	// 虚拟线程在synchronized或native调用中阻塞时会钉住(pin)载体线程, 慢任务数可以作为钉住的近似指标,
+	// 精确定位需要配合-Djdk.tracePinnedThreads=full.
+	private static final long block_slow_task_nanos = Const.getProperty("block_slow_task_ms", 100, 1, Integer.MAX_VALUE) * 1000000L;
+	// 专用于存储读取的线程池. 异步加载(见Procedure)时, 执行逻辑的线程不再等待存储, 只有这里的线程阻塞.
+	private static final ExecutorService ioExecutor = Executors.newFixedThreadPool(Const.getProperty("io_thread_num", 16, 1, 4096));
+	
+	public static final class Stat {
+		private final AtomicLong submitNum = new AtomicLong();
+		private final AtomicLong completeNum = new AtomicLong();
+		private final AtomicInteger activeNum = new AtomicInteger();
+		private volatile int maxActiveNum;
+		private final AtomicLong runNanos = new AtomicLong();
+		private final AtomicLong slowNum = new AtomicLong();
+	
+		public final long getSubmitNum() { return submitNum.get(); }
+		public final long getCompleteNum() { return completeNum.get(); }
+		public final int getActiveNum() { return activeNum.get(); }
+		public final int getMaxActiveNum() { return maxActiveNum; }
+		public final long getRunNanos() { return runNanos.get(); }
+		public final long getSlowNum() { return slowNum.get(); }
+		// 已提交但还未开始执行的任务数
+		public final long getPendingNum() { return getSubmitNum() - getCompleteNum() - getActiveNum(); }
+	
+		@Override
+		public String toString() {
+			return String.format("TaskPool.Stat{submit=%d, complete=%d, active=%d, maxActive=%d, pending=%d, slow=%d, run=%dms}",
+				getSubmitNum(), getCompleteNum(), getActiveNum(), getMaxActiveNum(), getPendingNum(), getSlowNum(), getRunNanos() / 1000000);
+		}
+	}
+	
+	private static final Stat blockStat = new Stat();
+	private static final Stat ioStat = new Stat();
+	
+	private static final class StatTask implements Runnable {
+		private final Stat stat;
+		private final Runnable task;
+		StatTask(Stat stat, Runnable task) {
+			this.stat = stat;
+			this.task = task;
+		}
+		@Override
+		public void run() {
+			final Stat stat = this.stat;
+			int active = stat.activeNum.incrementAndGet();
+			if(active > stat.maxActiveNum) stat.maxActiveNum = active;
+			long t1 = System.nanoTime();
+			try {
+				this.task.run();
+			} finally {
+				long t = System.nanoTime() - t1;
+				stat.runNanos.addAndGet(t);
+				if(t >= block_slow_task_nanos) stat.slowNum.incrementAndGet();
+				stat.activeNum.decrementAndGet();
+				stat.completeNum.incrementAndGet();
+			}
+		}
+	}
+	
+	private static ExecutorService createBlockExecutor() {
+		if(block_virtual_thread) {
+			// 源码需要兼容低版本jdk, 故通过反射创建.
+			try {
+				ExecutorService executor = (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+				log.info("TaskPool. blockExecutor use virtual thread.");
+				return executor;
+			} catch (Exception e) {
+				log.warn("TaskPool. virtual thread unsupported. fallback to fixed thread pool.", e);
+			}
+		}
+		return Executors.newFixedThreadPool(Const.getProperty("block_thread_num", 64));
+	}
 	
 	public static void execute(Runnable task) {
-		blockExecutor.execute(task);
+		blockStat.submitNum.incrementAndGet();
+		blockExecutor.execute(new StatTask(blockStat, task));
+	}
+	
+	/**
+	 * 在专用的io线程池里执行读存储之类的阻塞任务.
+	 */
+	public static void executeIO(Runnable task) {
+		ioStat.submitNum.incrementAndGet();
+		ioExecutor.execute(new StatTask(ioStat, task));
 	}
 	
 	public static void executeNoBlock(Runnable task) {
 		noblockExecutor.execute(task);
 	}
 	
-	public static void schedule(Runnable task, long delay, TimeUnit unit) {
+	/**
+	 * 延迟任务放入共享的时间轮, 插入与取消都是O(1). 精度为时间轮的tick(timing_wheel_tick_ms).
+	 * @return 可用于取消任务
+	 */
+	public static TimingWheel.Timeout schedule(Runnable task, long delay, TimeUnit unit) {
 		log.debug("task:{} delay:{} timeunit:{}", task, delay, unit);
-		normalScheduleExecutor.schedule(task, delay, unit);
+		return TimingWheel.getInstance().schedule(task, delay, unit);
 	}
 	
 	public static void scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
 		log.debug("task:{} initDelay:{} period:{} timeunit:{}", task, initialDelay, period, unit);
 		TaskPool.normalScheduleExecutor.scheduleAtFixedRate(task, initialDelay, period, unit);
 	}
-
+	
+	public static boolean isBlockVirtualThread() {
+		return !(blockExecutor instanceof ThreadPoolExecutor);
+	}
+	
+	public static Stat getBlockStat() {
+		return blockStat;
+	}
+	
+	public static Stat getIOStat() {
+		return ioStat;
+	}
+	
+	/**
+	 * @return 阻塞线程池排队等待线程的任务数. 虚拟线程每个任务一个线程, 总是返回0.
+	 */
+	public static int getBlockQueueSize() {
+		return blockExecutor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)blockExecutor).getQueue().size() : 0;
+	}
+	
 }
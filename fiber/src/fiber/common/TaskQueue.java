@@ -1,65 +1,334 @@
 package fiber.common;
 
-import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
 import fiber.io.Const;
 import static fiber.io.Log.log;
 
+/**
+ * 有序任务队列. 多个线程可以同时add, 同一时刻最多只有一个线程在执行队列里的任务.
+ * 实现为无锁的多生产者单消费者(MPSC)链表:
+ * 生产者只需一次getAndSet把节点挂到队尾, 消费者独占队头, 不需要任何锁.
+ * size既是队列长度, 也是调度状态: 把它从0变为1的生产者负责调度队列,
+ * 消费者把它减回0时停止执行.
+ */
 public class TaskQueue implements Runnable {
 	private final static int task_queue_batch = Const.getProperty("task_queue_batch", 128);
-	
-	private final LinkedList<Runnable> tasks;
-	private final ArrayList<Runnable> waitAddTask;
-	
-	private boolean running;
-	
+	private final static boolean task_queue_latency_stat = Const.getProperty("task_queue_latency_stat", 0) != 0;
+	// 0: TaskScheduler.POOL; 1: WorkStealingScheduler, 放置策略ROUND_ROBIN; 2: WorkStealingScheduler, 放置策略LEAST_LOADED
+	private final static int task_queue_scheduler = Const.getProperty("task_queue_scheduler", 0, 0, 2);
+	private final static TaskScheduler defaultScheduler = task_queue_scheduler == 0 ? TaskScheduler.POOL
+		: new WorkStealingScheduler("TaskQueue",
+			Const.getProperty("task_queue_scheduler_thread_num", Runtime.getRuntime().availableProcessors() * 2, 1, 1024),
+			task_queue_scheduler == 1 ? WorkStealingScheduler.PlacePolicy.ROUND_ROBIN : WorkStealingScheduler.PlacePolicy.LEAST_LOADED,
+			Const.getProperty("task_queue_scheduler_steal_most", 0) != 0 ? WorkStealingScheduler.StealPolicy.MOST_LOADED : WorkStealingScheduler.StealPolicy.RANDOM,
+			Const.getProperty("task_queue_scheduler_handoff", 8, 1, Integer.MAX_VALUE),
+			Const.getProperty("task_queue_scheduler_spin", 64, 1, 1024 * 1024));
+
+	public static enum OverflowPolicy {
+		// 抛出RejectedExecutionException
+		REJECT,
+		// 丢弃新任务, add返回false
+		DISCARD,
+	}
+
+	private static final class Node {
+		private Runnable task;
+		private final long enqueueTime;
+		private final int cost;
+		private volatile Node next;
+		Node(Runnable task, long enqueueTime, int cost) {
+			this.task = task;
+			this.enqueueTime = enqueueTime;
+			this.cost = cost;
+		}
+	}
+
+	private final AtomicReference<Node> tail;
+	private Node head;
+	private final AtomicInteger size;
+	private final int capacity;
+	private final OverflowPolicy policy;
+	private final TaskScheduler scheduler;
+	// 亲和的worker序号, 由WorkStealingScheduler维护. -1表示没有.
+	int affinity = -1;
+
+	// 由正在执行的任务设置, 见defer
+	private Runnable deferTask;
+	// < 0 表示suspend, 由resume恢复
+	private long deferDelay;
+	// suspend的任务返回与resume各加1, 后到达的一方(值为2)负责调度队列, 见resume
+	private final AtomicInteger resumeGate;
+	// 被defer的任务, 恢复后最先执行. 只由消费者访问.
+	private Runnable firstTask;
+	// 正在执行的任务的开销. 被defer的任务保留原来的开销, 恢复后才扣除.
+	private int currentCost;
+	private final Runnable resumer;
+
+	// 统计. 除overflowNum外只由消费者更新.
+	private volatile long processedNum;
+	private volatile long totalWaitNanos;
+	private volatile long maxWaitNanos;
+	private volatile int maxSize;
+	private final AtomicLong overflowNum;
+	// 还未执行完的任务的估计开销之和, 见add(Runnable, int)
+	private final AtomicLong pendingCost;
+	private volatile long maxPendingCost;
+
+	private final static ThreadLocal<TaskQueue> current = new ThreadLocal<TaskQueue>();
+
 	public TaskQueue() {
-		this.tasks = new LinkedList<Runnable>();
-		this.waitAddTask = new ArrayList<Runnable>();
-		this.running = false;
+		this(0, OverflowPolicy.REJECT);
+	}
+
+	/**
+	 * @param capacity 队列最大长度, <= 0 表示不限制.
+	 * @param policy 队列满时的处理策略.
+	 */
+	public TaskQueue(int capacity, OverflowPolicy policy) {
+		this(capacity, policy, defaultScheduler);
+	}
+	
+	public TaskQueue(int capacity, OverflowPolicy policy, TaskScheduler scheduler) {
+		this.head = new Node(null, 0, 0);
+		this.tail = new AtomicReference<Node>(this.head);
+		this.size = new AtomicInteger(0);
+		this.capacity = capacity;
+		this.policy = policy;
+		this.scheduler = scheduler;
+		this.overflowNum = new AtomicLong();
+		this.pendingCost = new AtomicLong();
+		this.resumeGate = new AtomicInteger();
+		this.resumer = new Runnable() {
+			@Override
+			public void run() {
+				schedule();
+			}
+		};
+	}
+
+	/**
+	 * @return 当前线程正在执行的TaskQueue, 不在TaskQueue里执行时返回null.
+	 */
+	public static TaskQueue current() {
+		return current.get();
 	}
 
 	@Override
 	public void run() {
+		current.set(this);
+		try {
+			runTasks();
+		} finally {
+			current.remove();
+		}
+	}
+
+	private void runTasks() {
 		int processedTaskNum = 0;
 		while(true) {
-			synchronized(this.waitAddTask) {
-				this.tasks.addAll(this.waitAddTask);
-				this.waitAddTask.clear();
-				if(this.tasks.isEmpty()) {
-					this.running = false;
-					return;
-				}
+			Runnable task = this.firstTask;
+			if(task != null) {
+				this.firstTask = null;
+			} else {
+				task = poll();
 			}
-			while(true) {
-				Runnable task = this.tasks.poll();
-				if(task == null) break;
-				try {
-					task.run();
-				} catch(Exception e) {
-					log.error("TaskQuee. task:{}", task, e);
-				}
-				if(++processedTaskNum >= task_queue_batch) {
-					schedule();
-					return;
+			final int cost = this.currentCost;
+			try {
+				task.run();
+			} catch(Exception e) {
+				log.error("TaskQuee. task:{}", task, e);
+			}
+			if(this.deferTask != null) {
+				// 被defer的任务占用当前任务的计数, 故size不变, 期间add的任务只排队, 不会被调度.
+				this.firstTask = this.deferTask;
+				this.deferTask = null;
+				if(this.deferDelay >= 0) {
+					TaskPool.schedule(this.resumer, this.deferDelay, TimeUnit.MILLISECONDS);
+				} else {
+					resume();
 				}
+				return;
 			}
+			this.processedNum++;
+			if(cost != 0) {
+				this.pendingCost.addAndGet(-cost);
+			}
+			final int remain = this.size.decrementAndGet();
+			afterExecute(remain);
+			if(remain == 0) return;
+			if(++processedTaskNum >= task_queue_batch) {
+				schedule();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * 只有size > 0 时才能调用. 生产者可能已经占据了队尾但还没有链接next, 此时短暂自旋等待.
+	 */
+	private Runnable poll() {
+		Node next;
+		while((next = this.head.next) == null) {
+			Thread.yield();
+		}
+		this.head = next;
+		Runnable task = next.task;
+		next.task = null;
+		this.currentCost = next.cost;
+		if(task_queue_latency_stat) {
+			long wait = System.nanoTime() - next.enqueueTime;
+			this.totalWaitNanos += wait;
+			if(wait > this.maxWaitNanos) this.maxWaitNanos = wait;
+		}
+		return task;
+	}
+
+	/**
+	 * 只能由本队列正在执行的任务调用.
+	 * 当前任务返回后, 暂停整个队列delay毫秒, 然后先执行task, 再执行队列里的其他任务.
+	 * 用于需要延迟重做, 但又不能打乱队列顺序的任务.
+	 */
+	public final void defer(Runnable task, long delay) {
+		assert(current.get() == this);
+		checkNotDeferred();
+		this.deferTask = task;
+		this.deferDelay = delay;
+	}
+	
+	/**
+	 * 只能由本队列正在执行的任务调用.
+	 * 与defer一样, 但不定时恢复: 暂停整个队列, 直到有人调用resume, 然后先执行task.
+	 * 用于等待异步操作(比如读存储)完成, 期间不占用任何线程.
+	 */
+	public final void suspend(Runnable task) {
+		assert(current.get() == this);
+		checkNotDeferred();
+		this.deferTask = task;
+		this.deferDelay = -1;
+	}
+	
+	/**
+	 * @return 当前任务是否已经调用过defer或suspend. 每个任务只能调用其中一次, 比如一个任务里同步执行了多个Procedure时.
+	 */
+	public final boolean isDeferred() {
+		return this.deferTask != null;
+	}
+	
+	private void checkNotDeferred() {
+		if(this.deferTask != null) {
+			throw new IllegalStateException("TaskQueue already deferred. task:" + this.deferTask);
 		}
 	}
 	
-	public final void add(Runnable task) {
+	/**
+	 * 每次suspend之后调用且只调用一次, 可以在任意线程里调用, 包括suspend的任务返回之前.
+	 */
+	public final void resume() {
+		if(this.resumeGate.incrementAndGet() == 2) {
+			this.resumeGate.set(0);
+			schedule();
+		}
+	}
 
-		synchronized(this.waitAddTask) {
-			this.waitAddTask.add(task);
-			if(!this.running) {
-				this.running = true;
-				schedule();
+	/**
+	 * @return 如果队列已满并且策略为DISCARD, 返回false.
+	 * @throws RejectedExecutionException 如果队列已满并且策略为REJECT.
+	 */
+	public final boolean add(Runnable task) {
+		return add(task, 0);
+	}
+	
+	/**
+	 * @param cost 任务的估计开销(比如消息字节数), 执行完后才从getPendingCost里扣除.
+	 */
+	public final boolean add(Runnable task, int cost) {
+		if(this.capacity > 0 && this.size.get() >= this.capacity) {
+			this.overflowNum.incrementAndGet();
+			if(this.policy == OverflowPolicy.REJECT) {
+				throw new RejectedExecutionException("TaskQueue overflow. capacity:" + this.capacity);
 			}
+			log.warn("TaskQueue overflow. capacity:{} discard task:{}", this.capacity, task);
+			return false;
+		}
+		if(cost != 0) {
+			long newCost = this.pendingCost.addAndGet(cost);
+			if(newCost > this.maxPendingCost) this.maxPendingCost = newCost;
 		}
+		Node node = new Node(task, task_queue_latency_stat ? System.nanoTime() : 0, cost);
+		this.tail.getAndSet(node).next = node;
+		int newSize = this.size.incrementAndGet();
+		if(newSize == 1) {
+			schedule();
+		} else if(newSize > this.maxSize) {
+			this.maxSize = newSize;
+		}
+		return true;
+	}
+
+	/**
+	 * 每个任务执行完并且计数更新后, 在消费者线程里调用. 可用于在队列消化后恢复生产(比如恢复读).
+	 * remain为0时, 新任务可能已经在别的线程上开始执行, 实现需要自己处理并发.
+	 * @param remain 剩余任务数
+	 */
+	protected void afterExecute(int remain) {
 	}
 	
 	protected void schedule() {
-		TaskPool.execute(this);
+		this.scheduler.schedule(this);
+	}
+	
+	public static TaskScheduler getDefaultScheduler() {
+		return defaultScheduler;
+	}
+
+	/////////////////////////////////////////////////////////
+	//  statistics
+	/////////////////////////////////////////////////////////
+	public final int size() {
+		return this.size.get();
+	}
+
+	public final int getMaxSize() {
+		return this.maxSize;
+	}
+
+	public final long getProcessedNum() {
+		return this.processedNum;
+	}
+
+	public final long getOverflowNum() {
+		return this.overflowNum.get();
+	}
+
+	public final long getPendingCost() {
+		return this.pendingCost.get();
+	}
+
+	public final long getMaxPendingCost() {
+		return this.maxPendingCost;
+	}
+
+	/**
+	 * 需要开启task_queue_latency_stat.
+	 */
+	public final long getAvgWaitNanos() {
+		long num = this.processedNum;
+		return num > 0 ? this.totalWaitNanos / num : 0;
+	}
+
+	public final long getMaxWaitNanos() {
+		return this.maxWaitNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("TaskQueue{size=%d, maxSize=%d, processed=%d, overflow=%d, pendingCost=%d, maxPendingCost=%d, avgWait=%dus, maxWait=%dus}",
+			size(), getMaxSize(), getProcessedNum(), getOverflowNum(), getPendingCost(), getMaxPendingCost(), getAvgWaitNanos() / 1000, getMaxWaitNanos() / 1000);
 	}
 
 }
@@ -0,0 +1,24 @@
+package fiber.common;
+
+/**
+ * 决定TaskQueue在哪个线程上执行. 每当TaskQueue由空闲变为需要执行时调用schedule,
+ * 实现者最终必须在某个线程上调用一次queue.run().
+ */
+public interface TaskScheduler {
+	void schedule(TaskQueue queue);
+	
+	/**
+	 * 原有的方式, 交给TaskPool的阻塞线程池执行.
+	 */
+	TaskScheduler POOL = new TaskScheduler() {
+		@Override
+		public void schedule(TaskQueue queue) {
+			TaskPool.execute(queue);
+		}
+	
+		@Override
+		public String toString() {
+			return "TaskScheduler.POOL";
+		}
+	};
+}
@@ -0,0 +1,315 @@
+package fiber.common;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fiber.io.Const;
+import static fiber.io.Log.log;
+
+/**
+ * 分层时间轮. 每层有2^bits个槽, 第0层每个槽为一个tick, 第i层每个槽为第i-1层转一圈的时间.
+ * 到期时间较远的定时器先放在高层, 时间推进到它所在的槽时再下放(cascade)到低层.
+ * schedule与cancel都是O(1): schedule只是放入无锁队列, cancel只是修改状态,
+ * 由tick线程放入槽或从槽里摘除. 到期的任务交给executor执行, 不在tick线程里执行.
+ * 精度为一个tick, 定时器可能比设定的时间晚最多一个tick触发.
+ */
+public final class TimingWheel {
+	private static final TimingWheel instance = new TimingWheel("TimingWheel",
+		Const.getProperty("timing_wheel_tick_ms", 10, 1, 1000),
+		Const.getProperty("timing_wheel_bits", 8, 4, 16),
+		Const.getProperty("timing_wheel_levels", 4, 1, 8),
+		Executors.newFixedThreadPool(Const.getProperty("schedule_thread_num", 2), new ThreadFactory() {
+			private final AtomicInteger id = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "TimingWheel-executor-" + id.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		}));
+	public static TimingWheel getInstance() { return instance; }
+
+	private static final int INIT = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	/**
+	 * schedule返回的句柄, 可用于取消.
+	 */
+	public static final class Timeout {
+		private static final AtomicIntegerFieldUpdater<Timeout> STATE = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+		private final TimingWheel wheel;
+		private final Runnable task;
+		private final long deadline;
+		private volatile int state;
+		// 以下只由tick线程访问
+		private Timeout prev;
+		private Timeout next;
+		private Bucket bucket;
+
+		Timeout(TimingWheel wheel, Runnable task, long deadline) {
+			this.wheel = wheel;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		public Runnable getTask() {
+			return this.task;
+		}
+
+		/**
+		 * @return 已经到期或已经取消时返回false
+		 */
+		public boolean cancel() {
+			if(!STATE.compareAndSet(this, INIT, CANCELLED)) return false;
+			this.wheel.cancelled.offer(this);
+			this.wheel.cancelNum.incrementAndGet();
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return this.state == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return this.state == EXPIRED;
+		}
+
+		@Override
+		public String toString() {
+			return "Timeout{task=" + this.task + ", deadline=" + this.deadline + ", state=" + this.state + "}";
+		}
+	}
+
+	// 槽里的定时器组成双向链表, 以便O(1)摘除
+	private static final class Bucket {
+		private Timeout head;
+
+		void add(Timeout t) {
+			t.bucket = this;
+			t.prev = null;
+			t.next = this.head;
+			if(this.head != null) this.head.prev = t;
+			this.head = t;
+		}
+
+		void remove(Timeout t) {
+			if(t.prev != null) {
+				t.prev.next = t.next;
+			} else {
+				this.head = t.next;
+			}
+			if(t.next != null) t.next.prev = t.prev;
+			t.prev = t.next = null;
+			t.bucket = null;
+		}
+
+		Timeout clear() {
+			Timeout h = this.head;
+			this.head = null;
+			return h;
+		}
+	}
+
+	private final String name;
+	private final long tickNanos;
+	private final int bits;
+	private final int mask;
+	private final Bucket[][] wheels;
+	private final long startTime;
+	private final Executor executor;
+	private final ConcurrentLinkedQueue<Timeout> added;
+	private final ConcurrentLinkedQueue<Timeout> cancelled;
+	// 只由tick线程访问
+	private long currentTick;
+
+	private final AtomicLong scheduleNum = new AtomicLong();
+	private final AtomicLong cancelNum = new AtomicLong();
+	private final AtomicInteger pendingNum = new AtomicInteger();
+	private volatile long expireNum;
+	private volatile long cascadeNum;
+
+	/**
+	 * @param executor 执行到期任务. 为null时直接在tick线程里执行, 此时任务必须很快返回.
+	 */
+	public TimingWheel(String name, int tickMillis, int bits, int levels, Executor executor) {
+		this.name = name;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		this.bits = bits;
+		this.mask = (1 << bits) - 1;
+		this.wheels = new Bucket[levels][1 << bits];
+		for(Bucket[] wheel : this.wheels) {
+			for(int i = 0 ; i < wheel.length ; i++) {
+				wheel[i] = new Bucket();
+			}
+		}
+		this.executor = executor;
+		this.added = new ConcurrentLinkedQueue<Timeout>();
+		this.cancelled = new ConcurrentLinkedQueue<Timeout>();
+		this.startTime = System.nanoTime();
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runTicks();
+			}
+		}, name);
+		t.setDaemon(true);
+		t.start();
+		log.info("{}.init tick:{}ms bits:{} levels:{}", name, tickMillis, bits, levels);
+	}
+
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		final long deadline = System.nanoTime() - this.startTime + unit.toNanos(Math.max(delay, 0));
+		Timeout t = new Timeout(this, task, deadline);
+		this.scheduleNum.incrementAndGet();
+		this.pendingNum.incrementAndGet();
+		this.added.offer(t);
+		return t;
+	}
+
+	private void runTicks() {
+		while(true) {
+			try {
+				final long nextTickTime = (this.currentTick + 1) * this.tickNanos;
+				final long sleepNanos = nextTickTime - (System.nanoTime() - this.startTime);
+				if(sleepNanos > 0) {
+					TimeUnit.NANOSECONDS.sleep(sleepNanos);
+					continue;
+				}
+				this.currentTick++;
+				processCancelled();
+				processAdded();
+				cascade();
+				expire(this.wheels[0][(int)(this.currentTick & this.mask)].clear());
+			} catch(InterruptedException e) {
+				log.warn("{} interrupted.", this.name);
+			} catch(Throwable e) {
+				log.error("{} tick:{}", this.name, this.currentTick, e);
+			}
+		}
+	}
+
+	private void processCancelled() {
+		Timeout t;
+		while((t = this.cancelled.poll()) != null) {
+			if(t.bucket != null) {
+				t.bucket.remove(t);
+				this.pendingNum.decrementAndGet();
+			}
+		}
+	}
+
+	private void processAdded() {
+		// 限制每个tick处理的数量, 避免大量schedule时tick线程长时间不推进
+		for(int i = 0 ; i < 100000 ; i++) {
+			Timeout t = this.added.poll();
+			if(t == null) break;
+			if(t.state != INIT) {
+				this.pendingNum.decrementAndGet();
+				continue;
+			}
+			place(t);
+		}
+	}
+
+	private void place(Timeout t) {
+		// 向上取整到tick, 保证不会提前触发
+		final long deadlineTick = (t.deadline + this.tickNanos - 1) / this.tickNanos;
+		final long delta = deadlineTick - this.currentTick;
+		if(delta <= 0) {
+			// 已经到期(或者刚下放下来就到期), 放到当前tick的槽里, 本tick就会执行
+			this.wheels[0][(int)(this.currentTick & this.mask)].add(t);
+			return;
+		}
+		final Bucket[][] ws = this.wheels;
+		for(int level = 0 ; level < ws.length ; level++) {
+			if(level == ws.length - 1 || delta < 1L << (this.bits * (level + 1))) {
+				final long tick = level == ws.length - 1 && delta >= 1L << (this.bits * (level + 1))
+					// 超出最大范围, 放在最高层最远的槽里, 下放后会重新计算
+					? this.currentTick + (1L << (this.bits * (level + 1))) - 1
+					: deadlineTick;
+				ws[level][(int)((tick >>> (this.bits * level)) & this.mask)].add(t);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * 第i层在tick的低bits*i位全为0时转到下一个槽, 把该槽里的定时器重新放置到低层.
+	 */
+	private void cascade() {
+		final long tick = this.currentTick;
+		for(int level = this.wheels.length - 1 ; level > 0 ; level--) {
+			if((tick & ((1L << (this.bits * level)) - 1)) != 0) continue;
+			Timeout t = this.wheels[level][(int)((tick >>> (this.bits * level)) & this.mask)].clear();
+			while(t != null) {
+				final Timeout next = t.next;
+				t.prev = t.next = null;
+				t.bucket = null;
+				place(t);
+				this.cascadeNum++;
+				t = next;
+			}
+		}
+	}
+
+	private void expire(Timeout t) {
+		while(t != null) {
+			final Timeout next = t.next;
+			t.prev = t.next = null;
+			t.bucket = null;
+			this.pendingNum.decrementAndGet();
+			if(Timeout.STATE.compareAndSet(t, INIT, EXPIRED)) {
+				this.expireNum++;
+				final Runnable task = t.task;
+				if(this.executor != null) {
+					this.executor.execute(task);
+				} else {
+					try {
+						task.run();
+					} catch(Exception e) {
+						log.error("{} task:{}", this.name, task, e);
+					}
+				}
+			}
+			t = next;
+		}
+	}
+
+	/////////////////////////////////////////////////////////
+	//  statistics
+	/////////////////////////////////////////////////////////
+	public long getScheduleNum() {
+		return this.scheduleNum.get();
+	}
+
+	public long getCancelNum() {
+		return this.cancelNum.get();
+	}
+
+	public long getExpireNum() {
+		return this.expireNum;
+	}
+
+	// 从高层下放到低层的次数
+	public long getCascadeNum() {
+		return this.cascadeNum;
+	}
+
+	// 还未到期也还未从轮里摘除的定时器数
+	public int getPendingNum() {
+		return this.pendingNum.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s{schedule=%d, cancel=%d, expire=%d, cascade=%d, pending=%d}",
+			this.name, getScheduleNum(), getCancelNum(), getExpireNum(), getCascadeNum(), getPendingNum());
+	}
+}
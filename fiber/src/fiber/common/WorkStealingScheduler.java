@@ -0,0 +1,268 @@
+package fiber.common;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static fiber.io.Log.log;
+
+/**
+ * 亲和调度器. 每个worker有自己的就绪队列, TaskQueue尽量留在上次执行它的worker上,
+ * 避免跨核切换, 也避免所有线程争用同一个全局队列.
+ * 空闲的worker会从其他worker的就绪队列里偷取TaskQueue, 并成为该TaskQueue新的亲和worker.
+ */
+public final class WorkStealingScheduler implements TaskScheduler {
+	
+	// 新TaskQueue(或从非worker线程调度)放到哪个worker.
+	// 如果从worker线程里调度, 总是优先放到当前worker.
+	public static enum PlacePolicy {
+		ROUND_ROBIN,
+		LEAST_LOADED,
+	}
+	
+	// 空闲worker偷取时如何选择目标.
+	public static enum StealPolicy {
+		// 从随机位置开始, 偷第一个非空的
+		RANDOM,
+		// 偷就绪队列最长的
+		MOST_LOADED,
+	}
+	
+	private final class Worker implements Runnable {
+		private final int index;
+		private final ConcurrentLinkedQueue<TaskQueue> queue = new ConcurrentLinkedQueue<TaskQueue>();
+		private final AtomicInteger load = new AtomicInteger();
+		private volatile boolean parked;
+		private Thread thread;
+	
+		Worker(int index) {
+			this.index = index;
+		}
+	
+		void push(TaskQueue q) {
+			// 先增加load, 保证hasWork不会漏掉刚放入的TaskQueue
+			this.load.incrementAndGet();
+			this.queue.offer(q);
+		}
+	
+		TaskQueue poll() {
+			TaskQueue q = this.queue.poll();
+			if(q != null) this.load.decrementAndGet();
+			return q;
+		}
+	
+		@Override
+		public void run() {
+			currentWorker.set(this);
+			int idleSpin = 0;
+			while(true) {
+				TaskQueue q = poll();
+				if(q == null) {
+					q = steal(this);
+				}
+				if(q == null) {
+					if(++idleSpin < spin) {
+						Thread.yield();
+					} else {
+						idleSpin = 0;
+						idle(this);
+					}
+					continue;
+				}
+				idleSpin = 0;
+				q.affinity = this.index;
+				try {
+					q.run();
+				} catch(Throwable e) {
+					log.error("WorkStealingScheduler. queue:{}", q, e);
+				}
+			}
+		}
+	}
+	
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	
+	private final Worker[] workers;
+	private final PlacePolicy placePolicy;
+	private final StealPolicy stealPolicy;
+	// 亲和worker的就绪队列长度超过此值时, 转交给负载最轻的worker.
+	private final int handoffThreshold;
+	private final int spin;
+	private final AtomicInteger idleNum = new AtomicInteger();
+	private final AtomicInteger nextIndex = new AtomicInteger();
+	private final ThreadLocal<Worker> currentWorker = new ThreadLocal<Worker>();
+	
+	private final AtomicLong scheduleNum = new AtomicLong();
+	private final AtomicLong affinityNum = new AtomicLong();
+	private final AtomicLong handoffNum = new AtomicLong();
+	private final AtomicLong stealNum = new AtomicLong();
+	private final AtomicLong parkNum = new AtomicLong();
+	
+	public WorkStealingScheduler(String name, int threadNum, PlacePolicy placePolicy, StealPolicy stealPolicy, int handoffThreshold, int spin) {
+		if(threadNum <= 0) throw new IllegalArgumentException("Illegal threadNum:" + threadNum);
+		this.placePolicy = placePolicy;
+		this.stealPolicy = stealPolicy;
+		this.handoffThreshold = handoffThreshold;
+		this.spin = spin;
+		this.workers = new Worker[threadNum];
+		for(int i = 0 ; i < threadNum ; i++) {
+			this.workers[i] = new Worker(i);
+		}
+		for(Worker w : this.workers) {
+			w.thread = new Thread(w, name + "-" + w.index);
+			w.thread.start();
+		}
+		log.info("WorkStealingScheduler.init name:{} threadNum:{} place:{} steal:{} handoff:{}", name, threadNum, placePolicy, stealPolicy, handoffThreshold);
+	}
+	
+	@Override
+	public void schedule(TaskQueue queue) {
+		this.scheduleNum.incrementAndGet();
+		final Worker cur = this.currentWorker.get();
+		final int affinity = queue.affinity;
+		Worker target;
+		if(affinity >= 0 && affinity < this.workers.length) {
+			target = this.workers[affinity];
+			if(target != cur && target.load.get() >= this.handoffThreshold) {
+				Worker alt = cur != null ? cur : leastLoaded();
+				if(alt.load.get() < target.load.get()) {
+					target = alt;
+					this.handoffNum.incrementAndGet();
+				} else {
+					this.affinityNum.incrementAndGet();
+				}
+			} else {
+				this.affinityNum.incrementAndGet();
+			}
+		} else if(cur != null) {
+			target = cur;
+		} else {
+			target = this.placePolicy == PlacePolicy.LEAST_LOADED ? leastLoaded()
+				: this.workers[(nextIndex.getAndIncrement() & Integer.MAX_VALUE) % this.workers.length];
+		}
+		queue.affinity = target.index;
+		target.push(queue);
+		if(target.parked) {
+			LockSupport.unpark(target.thread);
+		} else if(this.idleNum.get() > 0) {
+			// 目标worker(包括正在执行的当前worker自己)正忙, 唤醒一个空闲worker来偷取
+			wakeIdle();
+		}
+	}
+	
+	private Worker leastLoaded() {
+		Worker best = this.workers[0];
+		int bestLoad = best.load.get();
+		for(int i = 1 ; i < this.workers.length && bestLoad > 0 ; i++) {
+			int load = this.workers[i].load.get();
+			if(load < bestLoad) {
+				best = this.workers[i];
+				bestLoad = load;
+			}
+		}
+		return best;
+	}
+	
+	private TaskQueue steal(Worker thief) {
+		final int n = this.workers.length;
+		if(n == 1) return null;
+		if(this.stealPolicy == StealPolicy.MOST_LOADED) {
+			Worker victim = null;
+			int maxLoad = 0;
+			for(Worker w : this.workers) {
+				int load = w.load.get();
+				if(w != thief && load > maxLoad) {
+					victim = w;
+					maxLoad = load;
+				}
+			}
+			return victim != null ? stealFrom(victim) : null;
+		}
+		int start = ThreadLocalRandom.current().nextInt(n);
+		for(int i = 0 ; i < n ; i++) {
+			Worker w = this.workers[(start + i) % n];
+			if(w != thief && w.load.get() > 0) {
+				TaskQueue q = stealFrom(w);
+				if(q != null) return q;
+			}
+		}
+		return null;
+	}
+	
+	private TaskQueue stealFrom(Worker victim) {
+		TaskQueue q = victim.poll();
+		if(q != null) this.stealNum.incrementAndGet();
+		return q;
+	}
+	
+	private boolean hasWork() {
+		for(Worker w : this.workers) {
+			if(w.load.get() > 0) return true;
+		}
+		return false;
+	}
+	
+	private void idle(Worker w) {
+		w.parked = true;
+		this.idleNum.incrementAndGet();
+		// 设置parked后再检查一次, 与schedule里的push后检查parked配对, 不会丢失唤醒.
+		if(!hasWork()) {
+			this.parkNum.incrementAndGet();
+			// 带超时park, 即使漏掉唤醒也会定期醒来尝试偷取
+			LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+		}
+		this.idleNum.decrementAndGet();
+		w.parked = false;
+	}
+	
+	private void wakeIdle() {
+		for(Worker w : this.workers) {
+			if(w.parked) {
+				LockSupport.unpark(w.thread);
+				return;
+			}
+		}
+	}
+	
+	/////////////////////////////////////////////////////////
+	//  statistics
+	/////////////////////////////////////////////////////////
+	public int getThreadNum() {
+		return this.workers.length;
+	}
+	
+	public int getLoad(int index) {
+		return this.workers[index].load.get();
+	}
+	
+	public long getScheduleNum() {
+		return this.scheduleNum.get();
+	}
+	
+	// 回到原亲和worker的次数
+	public long getAffinityNum() {
+		return this.affinityNum.get();
+	}
+	
+	// 因为亲和worker太忙而转交的次数
+	public long getHandoffNum() {
+		return this.handoffNum.get();
+	}
+	
+	public long getStealNum() {
+		return this.stealNum.get();
+	}
+	
+	public long getParkNum() {
+		return this.parkNum.get();
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("WorkStealingScheduler{threads=%d, schedule=%d, affinity=%d, handoff=%d, steal=%d, park=%d}",
+			getThreadNum(), getScheduleNum(), getAffinityNum(), getHandoffNum(), getStealNum(), getParkNum());
+	}
+}
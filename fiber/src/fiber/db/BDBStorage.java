@@ -8,6 +8,9 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -406,10 +409,74 @@ public final class BDBStorage extends Storage {
 		}
 	}
 	
+	/**
+	 * 批量读取. 每个表只加一次读锁, 用一个cursor按key的顺序读取, 相邻的key大多在同一个叶子节点里.
+	 * @return 每个表的value与参数里的key一一对应, 不存在的key对应null.
+	 */
 	@Override
 	public Map<Integer, ArrayList<Octets>> get(
 			Map<Integer, ArrayList<Octets>> tableDatasMap) {
-		return null;
+		long t1 = Timer.currentTimeMillis();
+		int num = 0;
+		Map<Integer, ArrayList<Octets>> result = new HashMap<Integer, ArrayList<Octets>>();
+		for(Map.Entry<Integer, ArrayList<Octets>> e : new TreeMap<Integer, ArrayList<Octets>>(tableDatasMap).entrySet()) {
+			result.put(e.getKey(), getDatas(e.getKey(), e.getValue()));
+			num += e.getValue().size();
+		}
+		log.debug("BDBStorage.get table num:{} key num:{} cost time:{}", tableDatasMap.size(), num, Timer.currentTimeMillis() - t1);
+		return result;
+	}
+	
+	// 与BDB默认的key顺序一致: 按无符号字节的字典序
+	private static final Comparator<Octets> KEY_COMPARATOR = new Comparator<Octets>() {
+		@Override
+		public int compare(Octets o1, Octets o2) {
+			final byte[] b1 = o1.array();
+			final byte[] b2 = o2.array();
+			final int n = Math.min(o1.size(), o2.size());
+			for(int i = 0 ; i < n ; i++) {
+				int c = (b1[i] & 0xff) - (b2[i] & 0xff);
+				if(c != 0) return c;
+			}
+			return o1.size() - o2.size();
+		}
+	};
+	
+	private ArrayList<Octets> getDatas(int tableid, final ArrayList<Octets> keys) {
+		final int n = keys.size();
+		final Integer[] order = new Integer[n];
+		for(int i = 0 ; i < n ; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i1, Integer i2) {
+				return KEY_COMPARATOR.compare(keys.get(i1), keys.get(i2));
+			}
+		});
+		ArrayList<Octets> values = new ArrayList<Octets>(Collections.<Octets>nCopies(n, null));
+		DTable dTable = getTable(tableid);
+		Lock lock = dTable.rlock;
+		lock.lock();
+		try {
+			Cursor cursor = dTable.getDatabase().openCursor(null, null);
+			try {
+				DatabaseEntry dkey = new DatabaseEntry();
+				DatabaseEntry dvalue = new DatabaseEntry();
+				for(int i : order) {
+					Octets key = keys.get(i);
+					dkey.setData(key.array(), 0, key.size());
+					if(cursor.getSearchKey(dkey, dvalue, LockMode.READ_UNCOMMITTED) == OperationStatus.SUCCESS) {
+						values.set(i, Octets.create(dvalue.getData(), dvalue.getOffset(), dvalue.getSize()));
+					}
+				}
+			} finally {
+				cursor.close();
+			}
+		} finally {
+			lock.unlock();
+		}
+		return values;
 	}
 	
 	@Override
@@ -423,20 +490,7 @@ public final class BDBStorage extends Storage {
 		long t2 = Timer.currentTimeMillis();
 		Transaction txn = this.getTxn();
 		try {
-			for(Map.Entry<Integer, ArrayList<Pair>> e : tableDatasMap.entrySet()) {
-				Integer tableid = e.getKey();
-				DTable table = this.getTable(tableid);
-				Database db = table.getDatabase();
-				for(Pair pair : e.getValue()) {
-					// we presume value which is empty Octets means we should delete it.
-					Octets value = pair.getValue();
-					if(!value.empty()) {
-						this.putData(txn, db, pair.getKey(), pair.getValue());
-					} else {
-						this.delData(txn, db, pair.getKey());
-					}
-				}
-			}
+			putDatas(txn, tableDatasMap);
 			txn.commit();
 			long t3 = Timer.currentTimeMillis();
 			log.info("BDBStorage.put lock cost time:{}, commit cost time:{}, total cost time:{}", (t2 - t1), (t3 - t2), (t3 - t1));
@@ -451,6 +505,70 @@ public final class BDBStorage extends Storage {
 			unlockDBs(locks);
 		}
 	}
+	
+	private void putDatas(Transaction txn, Map<Integer, ArrayList<Pair>> tableDatasMap) {
+		for(Map.Entry<Integer, ArrayList<Pair>> e : tableDatasMap.entrySet()) {
+			Integer tableid = e.getKey();
+			DTable table = this.getTable(tableid);
+			Database db = table.getDatabase();
+			for(Pair pair : e.getValue()) {
+				// we presume value which is empty Octets means we should delete it.
+				Octets value = pair.getValue();
+				if(!value.empty()) {
+					this.putData(txn, db, pair.getKey(), pair.getValue());
+				} else {
+					this.delData(txn, db, pair.getKey());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * 所有put写入同一个BDB事务. 表的写锁只在每次put期间按表id的顺序持有, 不影响其他表的读写.
+	 * 读取使用READ_UNCOMMITTED, 不会被这个长事务持有的记录锁阻塞.
+	 */
+	@Override
+	public PutTxn beginPut() {
+		final Transaction txn = this.getTxn();
+		return new PutTxn() {
+			@Override
+			public boolean put(Map<Integer, ArrayList<Pair>> tableDatasMap) {
+				TreeMap<Integer, Boolean> locks = new TreeMap<Integer, Boolean>();
+				for(Integer tableid : tableDatasMap.keySet()) {
+					locks.put(tableid, false); // write lock.
+				}
+				lockDBs(locks);
+				try {
+					putDatas(txn, tableDatasMap);
+					return true;
+				} catch (Exception e) {
+					log.error("BDBStorage.PutTxn.put ", e);
+					return false;
+				} finally {
+					unlockDBs(locks);
+				}
+			}
+			
+			@Override
+			public boolean commit() {
+				long t1 = Timer.currentTimeMillis();
+				try {
+					txn.commit();
+					log.info("BDBStorage.PutTxn.commit cost time:{}", Timer.currentTimeMillis() - t1);
+					return true;
+				} catch (Exception e) {
+					log.error("BDBStorage.PutTxn.commit ", e);
+					txn.abort();
+					return false;
+				}
+			}
+			
+			@Override
+			public void abort() {
+				txn.abort();
+			}
+		};
+	}
 
 
 	@Override
@@ -3,7 +3,6 @@ package fiber.db;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.TreeMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -36,9 +35,11 @@ public class Enviroment {
 	}
 	
 	private final static Object flushLock = new Object();
-	private final static OctetsStream kos = OctetsStream.create(64);
-	private final static OctetsStream vos = OctetsStream.create(1024 * 1024);
 	
+	/**
+	 * 存盘. getWaitCommitDataMap只是在写锁内交换一次map, 提交中的事务只在这一瞬间等待,
+	 * 之后的提交进入新的map, 由下一次flush写入. 一次flush是存储里的一个事务, 所以不做边提交边写入的增量存盘.
+	 */
 	public static void flush() {
 		synchronized(flushLock) {
 			final Storage storage = Storage.getInstance();
@@ -49,48 +50,75 @@ public class Enviroment {
 			long t1 = Timer.currentTimeMillis();
 			log.info("Environment.flush ======> begin");
 			Map<WKey, WValue> data = Transaction.getWaitCommitDataMap();
-			TreeMap<Integer, ArrayList<Pair>> tableDatasMap = new TreeMap<Integer, ArrayList<Pair>>();
-			for(Map.Entry<WKey, WValue> e : data.entrySet()) {
-				WKey wkey = e.getKey();
-				Object key = wkey.getKey();
-				Object value = e.getValue().getCurValue();
-				Table table = wkey.getTable();
-				kos.clear();
-				table.marshalKey(kos, key);
-				vos.clear();
-				if(value != null) {
-					table.marshalValue(vos, value);
-				}
-				ArrayList<Pair> tableDatas = tableDatasMap.get(table.getId());
-				if(tableDatas == null) {
-					tableDatas = new ArrayList<Pair>();
-					tableDatasMap.put(table.getId(), tableDatas);
-				}
-				tableDatas.add(new Pair(kos.toOctets(), vos.toOctets()));
+			boolean succ;
+			try {
+				succ = FlushPipeline.flush(storage, data);
+			} catch (InterruptedException e) {
+				log.error("Environment.flush interrupted.", e);
+				Thread.currentThread().interrupt();
+				succ = false;
 			}
-			if(storage.put(tableDatasMap)) {		
+			if(succ) {		
 				Transaction.doneCommit();
 			} else {
 				log.error("Environment.flush storage.put fail. data num:{}", data.size());
 			}
 			long t2 = Timer.currentTimeMillis();
 			log.info("Environment.flush ======> end. data num:{} cost time:{}", data.size(), t2 - t1);
+			log.info("Environment.flush {}", FlushPipeline.getStat());
 		}
 	}
 	
+	// 所有表的缓存估计占用的堆字节数上限, 0表示不限制. 见Table.getBytes
+	private final static long table_cache_max_bytes = Const.getProperty("table_cache_max_mb", 0, 0, 1024 * 1024) * 1024L * 1024L;
+	
+	public static long getTotalBytes() {
+		long total = 0;
+		for(Table table : tableMap.values()) {
+			total += table.getBytes();
+		}
+		return total;
+	}
+	
 	public static void shrink() {
 		long t1 = Timer.currentTimeMillis();
 		for(Table table : tableMap.values()) {
 			if(table.overmaxsize()) {
-				log.info("Environment.shrink table:<{}> size:{} maxsize:{}. begin.", table.getId(), table.size(), table.maxsize());
+				log.info("Environment.shrink table:<{}> size:{} maxsize:{} bytes:{} maxbytes:{}. begin.", table.getId(), table.size(), table.maxsize(), table.getBytes(), table.getMaxBytes());
 				table.shrink();
-				log.info("Environment.shrink table:<{}> size:{} maxsize:{}. end.", table.getId(), table.size(), table.maxsize());
+				log.info("Environment.shrink table:<{}> size:{} maxsize:{}. end. {}", table.getId(), table.size(), table.maxsize(), table);
 			}
 		}
+		if(table_cache_max_bytes > 0) {
+			shrinkBytes();
+		}
 		long t2 = Timer.currentTimeMillis();
 		log.info("Environment.shrink all done! cost time:{}", t2 - t1);
 	}
 	
+	/**
+	 * 超出全局预算时, 淘汰到预算的4/5. 各表按 bytes/priority 的比例分摊.
+	 */
+	private static void shrinkBytes() {
+		final long total = getTotalBytes();
+		if(total <= table_cache_max_bytes) return;
+		final long excess = total - table_cache_max_bytes * 4 / 5;
+		double sumShare = 0;
+		for(Table table : tableMap.values()) {
+			sumShare += (double)table.getBytes() / table.getShrinkPriority();
+		}
+		if(sumShare <= 0) return;
+		log.info("Environment.shrinkBytes total:{} max:{} excess:{}. begin.", total, table_cache_max_bytes, excess);
+		for(Table table : tableMap.values()) {
+			final long bytes = (long)(excess * ((double)table.getBytes() / table.getShrinkPriority() / sumShare));
+			if(bytes <= 0) continue;
+			final long before = table.getBytes();
+			table.shrink(0, bytes);
+			log.info("Environment.shrinkBytes table:<{}> expect:{} freed:{}. {}", table.getId(), bytes, before - table.getBytes(), table);
+		}
+		log.info("Environment.shrinkBytes total:{}. end.", getTotalBytes());
+	}
+	
 	private static final ScheduledExecutorService scheduleExecutor = Executors.newSingleThreadScheduledExecutor();
 	static {
 		final int shrink_check_interval = Const.getProperty("shrink_check_interval", 6, 1, Integer.MAX_VALUE);
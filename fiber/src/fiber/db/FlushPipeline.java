@@ -0,0 +1,265 @@
+package fiber.db;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fiber.io.Const;
+import fiber.io.OctetsStream;
+import static fiber.io.Log.log;
+
+/**
+ * 流水线式的存盘.
+ * 原先的做法是单线程序列化所有脏数据,拼成一个巨大的TreeMap再一次性写入storage,
+ * 脏数据很多时会造成数秒的停顿和内存峰值.
+ * 现在由多个序列化线程并行序列化,按条数与字节数切成有界的batch,
+ * 通过有界队列交给写线程(调用flush的线程)连续写入storage.
+ * 队列满时序列化线程会阻塞等待(背压),从而限制同时驻留内存的batch数量.
+ * 所有batch写入同一个存储事务(Storage.beginPut), 最后一起提交, 与原先一样,
+ * 一次存盘的数据要么全部生效要么全部不生效, 崩溃后不会只留下一个事务修改的部分key.
+ */
+public final class FlushPipeline {
+	private final static int flush_marshal_thread_num = Const.getProperty("flush_marshal_thread_num", Runtime.getRuntime().availableProcessors(), 1, 64);
+	private final static int flush_batch_max_num = Const.getProperty("flush_batch_max_num", 4096, 1, Integer.MAX_VALUE);
+	private final static int flush_batch_max_bytes = Const.getProperty("flush_batch_max_bytes", 4 * 1024 * 1024, 1024, Integer.MAX_VALUE);
+	private final static int flush_pipeline_depth = Const.getProperty("flush_pipeline_depth", 4, 1, 1024);
+	// 序列化线程每次认领的数据条数
+	private final static int CLAIM_SLICE = 256;
+
+	private static final ExecutorService marshalExecutor = Executors.newFixedThreadPool(flush_marshal_thread_num);
+
+	public static final class Stat {
+		private final AtomicLong flushNum = new AtomicLong();
+		private final AtomicLong entryNum = new AtomicLong();
+		private final AtomicLong batchNum = new AtomicLong();
+		private final AtomicLong bytes = new AtomicLong();
+		private final AtomicLong marshalNanos = new AtomicLong();
+		private final AtomicLong writeNanos = new AtomicLong();
+		private final AtomicLong backpressureNum = new AtomicLong();
+		private final AtomicLong backpressureNanos = new AtomicLong();
+		private final AtomicLong failNum = new AtomicLong();
+
+		public final long getFlushNum() { return flushNum.get(); }
+		public final long getEntryNum() { return entryNum.get(); }
+		public final long getBatchNum() { return batchNum.get(); }
+		public final long getBytes() { return bytes.get(); }
+		public final long getMarshalNanos() { return marshalNanos.get(); }
+		public final long getWriteNanos() { return writeNanos.get(); }
+		public final long getBackpressureNum() { return backpressureNum.get(); }
+		public final long getBackpressureNanos() { return backpressureNanos.get(); }
+		public final long getFailNum() { return failNum.get(); }
+
+		@Override
+		public String toString() {
+			return String.format("FlushStat{flush=%d, entry=%d, batch=%d, bytes=%d, marshal=%dms, write=%dms, backpressure=%d/%dms, fail=%d}",
+				getFlushNum(), getEntryNum(), getBatchNum(), getBytes(), getMarshalNanos() / 1000000, getWriteNanos() / 1000000,
+				getBackpressureNum(), getBackpressureNanos() / 1000000, getFailNum());
+		}
+	}
+
+	private static final Stat stat = new Stat();
+	public static Stat getStat() { return stat; }
+
+	private static final class Batch {
+		private final TreeMap<Integer, ArrayList<Pair>> tableDatas = new TreeMap<Integer, ArrayList<Pair>>();
+		private int num = 0;
+		private long bytes = 0;
+
+		void add(int tableid, Pair pair) {
+			ArrayList<Pair> datas = this.tableDatas.get(tableid);
+			if(datas == null) {
+				datas = new ArrayList<Pair>();
+				this.tableDatas.put(tableid, datas);
+			}
+			datas.add(pair);
+			this.num++;
+			this.bytes += pair.getKey().size() + pair.getValue().size();
+		}
+
+		boolean full() {
+			return this.num >= flush_batch_max_num || this.bytes >= flush_batch_max_bytes;
+		}
+
+		boolean empty() {
+			return this.num == 0;
+		}
+	}
+
+	// 序列化线程结束的标记
+	private static final Batch END = new Batch();
+
+	private final Storage storage;
+	private final Object[] entries;
+	private final AtomicInteger cursor;
+	private final BlockingQueue<Batch> queue;
+	private volatile boolean abort;
+
+	private FlushPipeline(Storage storage, Map<WKey, WValue> data) {
+		this.storage = storage;
+		this.entries = data.entrySet().toArray();
+		this.cursor = new AtomicInteger(0);
+		this.queue = new ArrayBlockingQueue<Batch>(flush_pipeline_depth);
+		this.abort = false;
+	}
+
+	/**
+	 * 把data写入storage. 调用线程作为写线程.
+	 * @return 所有batch都写入并提交成功返回true. 失败时什么都没有写入, 调用者下次重新flush整个data即可.
+	 */
+	public static boolean flush(Storage storage, Map<WKey, WValue> data) throws InterruptedException {
+		stat.flushNum.incrementAndGet();
+		if(data.isEmpty()) return true;
+		FlushPipeline pipeline = new FlushPipeline(storage, data);
+		return pipeline.run();
+	}
+
+	private boolean run() throws InterruptedException {
+		int workerNum = Math.min(flush_marshal_thread_num, (this.entries.length + CLAIM_SLICE - 1) / CLAIM_SLICE);
+		for(int i = 0 ; i < workerNum ; i++) {
+			marshalExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					marshal();
+				}
+			});
+		}
+		final Storage.PutTxn txn = this.storage.beginPut();
+		boolean succ = true;
+		boolean committed = false;
+		int endNum = 0;
+		try {
+			while(endNum < workerNum) {
+				Batch batch = this.queue.take();
+				if(batch == END) {
+					endNum++;
+					continue;
+				}
+				// 失败后继续取出剩余的batch, 让阻塞在队列上的序列化线程能够退出.
+				if(!succ) continue;
+				long t1 = System.nanoTime();
+				succ = txn.put(batch.tableDatas);
+				stat.writeNanos.addAndGet(System.nanoTime() - t1);
+				if(succ) {
+					stat.batchNum.incrementAndGet();
+					stat.entryNum.addAndGet(batch.num);
+					stat.bytes.addAndGet(batch.bytes);
+					log.debug("FlushPipeline.write batch. num:{} bytes:{}", batch.num, batch.bytes);
+				} else {
+					log.error("FlushPipeline.write batch fail. num:{} bytes:{}", batch.num, batch.bytes);
+					this.abort = true;
+				}
+			}
+			if(!this.abort) {
+				long t1 = System.nanoTime();
+				// commit失败时由存储自己回滚
+				committed = true;
+				succ = txn.commit();
+				stat.writeNanos.addAndGet(System.nanoTime() - t1);
+				if(!succ) log.error("FlushPipeline.commit fail. num:{}", this.entries.length);
+			}
+		} finally {
+			if(!committed) {
+				// 包括写线程被中断: 让序列化线程尽快退出, 并取走它们的batch与END, 否则它们会一直阻塞, 占住marshalExecutor.
+				this.abort = true;
+				txn.abort();
+				drain(endNum, workerNum);
+			}
+		}
+		if(!committed || !succ) {
+			stat.failNum.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+	
+	private void drain(int endNum, int workerNum) {
+		boolean interrupted = false;
+		while(endNum < workerNum) {
+			try {
+				if(this.queue.take() == END) endNum++;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void marshal() {
+		final Object[] entries = this.entries;
+		final OctetsStream kos = OctetsStream.create(64);
+		final OctetsStream vos = OctetsStream.create(1024);
+		Batch batch = new Batch();
+		try {
+			while(!this.abort) {
+				int begin = this.cursor.getAndAdd(CLAIM_SLICE);
+				if(begin >= entries.length) break;
+				int end = Math.min(begin + CLAIM_SLICE, entries.length);
+				long t1 = System.nanoTime();
+				for(int i = begin ; i < end ; i++) {
+					@SuppressWarnings("unchecked")
+					Map.Entry<WKey, WValue> e = (Map.Entry<WKey, WValue>)entries[i];
+					WKey wkey = e.getKey();
+					Object value = e.getValue().getCurValue();
+					Table table = wkey.getTable();
+					kos.clear();
+					table.marshalKey(kos, wkey.getKey());
+					vos.clear();
+					if(value != null) {
+						table.marshalValue(vos, value);
+						// 顺便用序列化的大小更新缓存条目的估计大小
+						table.updateWeight(e.getValue().getTvalue(), table.toHeapBytes(vos.size()));
+					}
+					batch.add(table.getId(), new Pair(kos.toOctets(), vos.toOctets()));
+					if(batch.full()) {
+						stat.marshalNanos.addAndGet(System.nanoTime() - t1);
+						offer(batch);
+						batch = new Batch();
+						t1 = System.nanoTime();
+					}
+				}
+				stat.marshalNanos.addAndGet(System.nanoTime() - t1);
+			}
+			if(!batch.empty() && !this.abort) {
+				offer(batch);
+			}
+		} catch(Exception e) {
+			log.error("FlushPipeline.marshal fail.", e);
+			this.abort = true;
+		} finally {
+			offerEnd();
+		}
+	}
+
+	private void offer(Batch batch) throws InterruptedException {
+		if(!this.queue.offer(batch)) {
+			stat.backpressureNum.incrementAndGet();
+			long t1 = System.nanoTime();
+			this.queue.put(batch);
+			stat.backpressureNanos.addAndGet(System.nanoTime() - t1);
+		}
+	}
+
+	private void offerEnd() {
+		boolean interrupted = false;
+		// 写线程依赖END标记退出, 必须送达.
+		while(true) {
+			try {
+				this.queue.put(END);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package fiber.db;
+
+/**
+ * 4位计数器的Count-Min Sketch, 估计key最近的访问频率(最大15).
+ * 每个long分为16个计数器, 一个key在4个long里各占一个计数器, 频率取其中的最小值.
+ * 累计增加的次数达到容量的10倍时, 所有计数器减半, 让频率随时间衰减.
+ * 表按实际的条目数逐步扩大(见ensureCapacity), 扩大时丢弃已有的计数.
+ * 非线程安全, 由TinyLfuCache在锁内访问.
+ */
+final class FrequencySketch {
+	private static final long[] SEED = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final long ONE_MASK = 0x1111111111111111L;
+
+	private long[] table;
+	private int tableMask;
+	private int sampleSize;
+	private int size;
+
+	FrequencySketch(int capacity) {
+		ensureCapacity(capacity);
+	}
+
+	/**
+	 * 容量小于capacity时扩大到不小于capacity的2的幂.
+	 */
+	void ensureCapacity(int capacity) {
+		int n = 16;
+		while(n < capacity && n < (1 << 30)) {
+			n <<= 1;
+		}
+		if(this.table != null && n <= this.table.length) return;
+		this.table = new long[n];
+		this.tableMask = n - 1;
+		this.sampleSize = (int)Math.min(10L * n, Integer.MAX_VALUE);
+		this.size = 0;
+	}
+
+	int capacity() {
+		return this.table.length;
+	}
+
+	int frequency(Object key) {
+		final int hash = spread(key.hashCode());
+		final int start = (hash & 3) << 2;
+		int freq = 15;
+		for(int i = 0 ; i < 4 ; i++) {
+			final int index = indexOf(hash, i);
+			final int count = (int)((this.table[index] >>> ((start + i) << 2)) & 0xfL);
+			if(count < freq) freq = count;
+		}
+		return freq;
+	}
+
+	void increment(Object key) {
+		final int hash = spread(key.hashCode());
+		final int start = (hash & 3) << 2;
+		boolean added = false;
+		for(int i = 0 ; i < 4 ; i++) {
+			added |= incrementAt(indexOf(hash, i), start + i);
+		}
+		if(added && ++this.size >= this.sampleSize) {
+			reset();
+		}
+	}
+
+	private boolean incrementAt(int i, int j) {
+		final int offset = j << 2;
+		final long mask = 0xfL << offset;
+		if((this.table[i] & mask) != mask) {
+			this.table[i] += 1L << offset;
+			return true;
+		}
+		return false;
+	}
+
+	private void reset() {
+		int count = 0;
+		for(int i = 0 ; i < this.table.length ; i++) {
+			count += Long.bitCount(this.table[i] & ONE_MASK);
+			this.table[i] = (this.table[i] >>> 1) & RESET_MASK;
+		}
+		this.size = (this.size >>> 1) - (count >>> 2);
+	}
+
+	private int indexOf(int item, int i) {
+		long hash = (item + SEED[i]) * SEED[i];
+		hash += hash >>> 32;
+		return ((int)hash) & this.tableMask;
+	}
+
+	private static int spread(int x) {
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		x = ((x >>> 16) ^ x) * 0x45d9f3b;
+		return (x >>> 16) ^ x;
+	}
+}
@@ -0,0 +1,13 @@
+package fiber.db;
+
+/**
+ * 异步加载模式下Table.get未命中时抛出. 数据正在io线程里加载, Procedure放弃本次执行,
+ * 释放所有锁后挂起, 加载完成后重新执行. 见Procedure.isAsyncLoad.
+ */
+public class LoadPendingException extends Exception {
+	private static final long serialVersionUID = 4168297093352617394L;
+	public static final LoadPendingException INSTANCE = new LoadPendingException();
+	private LoadPendingException() {
+		super("", null, false, false);
+	}
+}
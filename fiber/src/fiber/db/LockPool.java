@@ -1,7 +1,8 @@
 package fiber.db;
 
-import java.util.Collection;
-import java.util.concurrent.locks.Lock;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.ReentrantLock;
 
 import fiber.io.Const;
@@ -10,50 +11,157 @@ import static fiber.io.Log.log;
 public final class LockPool {
 	private static final LockPool instance = new LockPool(Const.getProperty("lock_pool_size", 1024 * 8));
 	public static LockPool getInstance() { return instance; }
-	
-	final private Lock[] locks;
+
+	// 加锁失败后先自旋tryLock的次数, 然后才阻塞(park). 0表示直接阻塞.
+	private static final int lock_pool_spin = Const.getProperty("lock_pool_spin", 0, 0, 1024 * 1024);
+
+	final private ReentrantLock[] locks;
 	final int mask;
+	// 每个锁的冲突次数(tryLock失败的次数).只在冲突时才更新,不影响无冲突路径.
+	final private AtomicLongArray contendedNums;
+	final private AtomicLong contendedNum;
+	final private AtomicLong spinSuccNum;
+	final private AtomicLong waitNanos;
 	LockPool(int locksize) {
 		if(locksize < 32 || locksize > 1024 * 1024) throw new IllegalArgumentException("Illegle locksize:" + locksize);
 		locksize = probSize(locksize);
 		mask = locksize - 1;
-		locks = new Lock[locksize];
+		locks = new ReentrantLock[locksize];
 		for(int i = 0 ; i < locksize ; i++) {
 			locks[i] = new ReentrantLock();
 		}
-		log.info("LookPool.init locksize:{} mask:{}", locksize, mask);
+		this.contendedNums = new AtomicLongArray(locksize);
+		this.contendedNum = new AtomicLong();
+		this.spinSuccNum = new AtomicLong();
+		this.waitNanos = new AtomicLong();
+		log.info("LookPool.init locksize:{} mask:{} spin:{}", locksize, mask, lock_pool_spin);
 	}
-	
+
 	public int lockid(int hash) {
 		return hash & mask;
 	}
-	
-	
+
+	public int size() {
+		return this.locks.length;
+	}
+
+	public LockSet newLockSet() {
+		return new LockSet(this.locks.length);
+	}
+
 	public void lock(int lockid) {
-		log.debug("LockPool.lock lock:{}", lockid);
-		this.locks[lockid].lock();
+		final ReentrantLock lock = this.locks[lockid];
+		if(lock.tryLock()) return;
+		lockContended(lock, lockid);
+	}
+
+	private void lockContended(ReentrantLock lock, int lockid) {
+		this.contendedNums.incrementAndGet(lockid);
+		this.contendedNum.incrementAndGet();
+		for(int i = lock_pool_spin ; i > 0 ; i--) {
+			if(lock.tryLock()) {
+				this.spinSuccNum.incrementAndGet();
+				return;
+			}
+		}
+		long t1 = System.nanoTime();
+		lock.lock();
+		this.waitNanos.addAndGet(System.nanoTime() - t1);
 	}
-	
-	public void lock(Collection<Integer> c) {
-		for(int lockid : c) {
-			lock(lockid);
+
+	/**
+	 * @param ls 必须已经排过序
+	 */
+	public void lock(LockSet ls) {
+		for(int i = 0, n = ls.size() ; i < n ; i++) {
+			lock(ls.get(i));
 		}
 	}
-	
+
+	/**
+	 * 尝试获取所有锁, 任何一个失败都会释放已获取的锁并返回false.
+	 */
+	public boolean tryLock(LockSet ls) {
+		for(int i = 0, n = ls.size() ; i < n ; i++) {
+			if(!this.locks[ls.get(i)].tryLock()) {
+				for(int j = i - 1 ; j >= 0 ; j--) {
+					unlock(ls.get(j));
+				}
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public boolean isLocked(int lockid) {
+		return this.locks[lockid].isLocked();
+	}
+
 	public void unlock(int lockid) {
-		log.debug("LockPool.unlock lock:{}", lockid);
 		this.locks[lockid].unlock();
 	}
-	
-	public void unlock(Collection<Integer> c) {
-		for(int lockid : c) {
-			unlock(lockid);
+
+	public void unlock(LockSet ls) {
+		for(int i = ls.size() - 1 ; i >= 0 ; i--) {
+			unlock(ls.get(i));
 		}
 	}
-	
+
+	/////////////////////////////////////////////////////////
+	//  contention statistics
+	/////////////////////////////////////////////////////////
+	public long getContendedNum(int lockid) {
+		return this.contendedNums.get(lockid);
+	}
+
+	public long getContendedNum() {
+		return this.contendedNum.get();
+	}
+
+	public long getSpinSuccNum() {
+		return this.spinSuccNum.get();
+	}
+
+	public long getWaitNanos() {
+		return this.waitNanos.get();
+	}
+
+	public int getQueueLength(int lockid) {
+		return this.locks[lockid].getQueueLength();
+	}
+
+	/**
+	 * @return 冲突次数最多的n个锁的id, 按冲突次数降序.
+	 */
+	public int[] getHotLocks(int n) {
+		if(n <= 0) return new int[0];
+		int[] hots = new int[Math.min(n, this.locks.length)];
+		long[] nums = new long[hots.length];
+		int count = 0;
+		for(int i = 0 ; i < this.locks.length ; i++) {
+			long num = this.contendedNums.get(i);
+			if(num == 0 || (count == hots.length && num <= nums[count - 1])) continue;
+			int pos = count < hots.length ? count++ : count - 1;
+			while(pos > 0 && nums[pos - 1] < num) {
+				nums[pos] = nums[pos - 1];
+				hots[pos] = hots[pos - 1];
+				pos--;
+			}
+			nums[pos] = num;
+			hots[pos] = i;
+		}
+		return Arrays.copyOf(hots, count);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("LockPool{size=%d, contended=%d, spinSucc=%d, wait=%dms}",
+			this.locks.length, getContendedNum(), getSpinSuccNum(), getWaitNanos() / 1000000);
+	}
+
 	private int probSize(int size) {
 		int finalSize = 32;
-		while(finalSize < size) 
+		while(finalSize < size)
 			finalSize <<= 1;
 		return finalSize;
 	}
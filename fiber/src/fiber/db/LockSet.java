@@ -0,0 +1,68 @@
+package fiber.db;
+
+import java.util.Arrays;
+
+/**
+ * 事务持有的锁id集合.
+ * 用有序int数组保存加锁顺序,用bitset做O(1)的包含判断,
+ * 整个过程不装箱,不分配对象. 每个事务(线程)一个实例,非线程安全.
+ */
+public final class LockSet {
+	private int[] ids;
+	private int size;
+	private final long[] bits;
+
+	public LockSet(int locksize) {
+		this.ids = new int[16];
+		this.size = 0;
+		this.bits = new long[(locksize + 63) >>> 6];
+	}
+
+	public final boolean contains(int lockid) {
+		return (this.bits[lockid >>> 6] & (1L << lockid)) != 0;
+	}
+
+	/**
+	 * @return 如果lockid之前不在集合中, 返回true
+	 */
+	public final boolean add(int lockid) {
+		if(contains(lockid)) return false;
+		this.bits[lockid >>> 6] |= (1L << lockid);
+		if(this.size == this.ids.length) {
+			this.ids = Arrays.copyOf(this.ids, this.size << 1);
+		}
+		this.ids[this.size++] = lockid;
+		return true;
+	}
+
+	/**
+	 * 加锁前必须排序, 保证所有事务以相同顺序加锁, 避免死锁.
+	 */
+	public final void sort() {
+		Arrays.sort(this.ids, 0, this.size);
+	}
+
+	public final int get(int index) {
+		return this.ids[index];
+	}
+
+	public final int size() {
+		return this.size;
+	}
+
+	public final boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	public final void clear() {
+		for(int i = 0 ; i < this.size ; i++) {
+			this.bits[this.ids[i] >>> 6] = 0;
+		}
+		this.size = 0;
+	}
+
+	@Override
+	public String toString() {
+		return "LockSet" + Arrays.toString(Arrays.copyOf(this.ids, this.size));
+	}
+}
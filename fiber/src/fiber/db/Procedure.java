@@ -1,57 +1,337 @@
 package fiber.db;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import fiber.common.TaskPool;
+import fiber.common.TaskQueue;
 import fiber.db.Transaction.Dispatcher;
+import fiber.io.Const;
 import static fiber.io.Log.log;
 
 public abstract class Procedure implements Runnable {	
+	// 连续冲突redo达到此次数后, 转为悲观模式: 执行前事先锁定之前用到的所有key.
+	private final static int procedure_max_redo = Const.getProperty("procedure_max_redo", 8, 2, Integer.MAX_VALUE);
+	private final static int procedure_redo_backoff_init = Const.getProperty("procedure_redo_backoff_init", 1, 1, 1000);
+	private final static int procedure_redo_backoff_max = Const.getProperty("procedure_redo_backoff_max", 64, 1, 60000);
+	// 缓存未命中时挂起Procedure异步加载, 见isAsyncLoad
+	private final static boolean procedure_async_load = Const.getProperty("procedure_async_load", 0) != 0;
+	
 	protected Transaction txn;
 	protected Dispatcher net;
+	
+	private int redoNum = 0;
+	private long startTime = 0;
+	// 悲观模式下需要事先锁定的key. 为null表示乐观模式.
+	private ArrayList<WKey> lockKeys = null;
+	// 使用者事先声明的key, 见declareKey.
+	private ArrayList<WKey> declaredKeys = null;
+	// 使用者事先声明需要预取的key, 见declarePrefetch.
+	private ArrayList<WKey> prefetchKeys = null;
+	// 本次执行是否因缓存未命中挂起过
+	private boolean loadMissed = false;
+	// 挂起时等待的加载, 恢复执行时检查是否失败
+	private Table.Loading loadWait = null;
+	private final ProcedureStat stat = ProcedureStat.get(this.getClass());
+	
+	/**
+	 * 执行本Procedure. 冲突多次后的退避重做(见redoLater)与异步加载未命中(见waitLoad)时,
+	 * run在Procedure完成之前就返回, 之后在其他线程里再次执行run, 完成时调用onDone/onRetError/onException.
+	 * 作为TaskQueue的任务执行时, 队列暂停, 重新执行本Procedure之前不会执行后面的任务.
+	 * 其他情况下(包括在同一个任务里同步执行多个Procedure), 调用者不能假设run返回时Procedure已经完成.
+	 */
 	public final void run() {
+		final Transaction txn = Transaction.get();
+		long redoDelay = -1;
+		Table.Loading pending = null;
+		final boolean first = this.redoNum == 0 && !this.loadMissed;
+		if(first) {
+			this.startTime = System.nanoTime();
+		}
 		try {
-			this.txn = Transaction.get();
-			this.txn.prepare();
+			this.txn = txn;
+			txn.prepare();
+			txn.setReadOnly(isReadOnly());
+			txn.setAsyncLoad(isAsyncLoad());
 			this.net = txn.getDispatcher();
+			if(this.loadWait != null) {
+				final Exception error = this.loadWait.getError();
+				this.loadWait = null;
+				// 加载失败时不再重试, 与同步加载一样交给onException
+				if(error != null) throw error;
+			}
+			if(first) {
+				// 在加锁之前读存储. redo时数据一般已经在缓存里, 不再预取.
+				if(txn.isAsyncLoad() && (hasUncached(this.declaredKeys) || hasUncached(this.prefetchKeys))) {
+					pending = prefetchAsync();
+					return;
+				}
+				prefetch();
+			}
+			if(this.declaredKeys != null) {
+				txn.lockKeys(this.declaredKeys);
+			}
+			if(this.lockKeys != null) {
+				txn.lockKeys(this.lockKeys);
+			}
 			
-			for(int i = 0 ;  ; i++) {
+			while(true) {
 				try {
 					execute();
-					this.txn.commit();
+					// 使用者可能捕获了LoadPendingException, 此时读到的数据不完整, 不能提交
+					pending = txn.takePendingLoad();
+					if(pending != null) throw LoadPendingException.INSTANCE;
+					txn.commit();
+					this.stat.onDone(System.nanoTime() - this.startTime, this.loadMissed);
+					reset();
 					try {
 						this.onDone();
 					} catch(Exception e) {
-						log.error("{}. {}.onDone Exception.", this.txn, this);
+						log.error("{}. {}.onDone Exception.", txn, this);
 						log.error("", e);
 					}
 					return;
 				}
 				catch(ConflictException ce) {
-					if(i == 0) {
+					this.redoNum++;
+					this.stat.onRedo();
+					if(this.declaredKeys != null) {
+						log.warn("{} {} conflict with declared keys. undeclared conflict keys:{}", txn, this, txn.getConflictKeys());
+					}
+					if(this.lockKeys != null) {
+						// 悲观模式. 记下新用到的key, 不释放锁, 重做.
+						for(WKey key : txn.getDataMap().keySet()) {
+							if(!this.lockKeys.contains(key)) this.lockKeys.add(key);
+						}
+						txn.rollbackHoldLocks();
+					} else if(this.redoNum == 1) {
 						// 如果是第一次失败,不释放锁,重做
-						this.txn.rollbackHoldLocks();
+						txn.rollbackHoldLocks();
 					} else {
 						// 如果意外地第二次也失败了(当且仅当每次执行需要获取的锁不同,这种事情相当罕见)
-						// 释放所有锁,休眠一段时间,重做
-						this.txn.rollback();
-						Thread.sleep(i);
+						// 释放所有锁,退避一段时间后重做. 不在当前线程休眠, 以免占用线程池.
+						if(this.redoNum >= procedure_max_redo) {
+							this.lockKeys = new ArrayList<WKey>(txn.getDataMap().keySet());
+							this.stat.onEscalate();
+							log.warn("{} {} redo:{} too many times. escalate to pessimistic mode.", txn, this, this.redoNum);
+						}
+						txn.rollback();
+						redoDelay = backoff(this.redoNum);
+						return;
 					}
 				}
 			}
 		} catch (RetException ret) {
+			// 使用者捕获了LoadPendingException之后又返回错误, 依据的数据不完整, 与未命中一样挂起重做
+			pending = txn.takePendingLoad();
+			if(pending != null) {
+				return;
+			}
+			this.stat.onRetError(System.nanoTime() - this.startTime, this.loadMissed);
+			reset();
 			this.onRetError(ret.getRetcode(), ret.getContent());
 		} catch(Exception e) {
+			if(pending == null) {
+				pending = txn.takePendingLoad();
+			}
+			if(pending != null) {
+				// 异步加载未命中(LoadPendingException可能被script engine重新包装过). 释放所有锁后挂起.
+				return;
+			}
+			final boolean missed = this.loadMissed;
+			reset();
 			// 如果在script engine里触发的exception,可能会被重新包装过.故.
 			Throwable t = e.getCause();
 			if(t instanceof RetException) {
+				this.stat.onRetError(System.nanoTime() - this.startTime, missed);
 				RetException ret = (RetException)t;
 				this.onRetError(ret.getRetcode(), ret.getContent());
 			} else {
+				this.stat.onException(System.nanoTime() - this.startTime, missed);
 				this.onException(e);
 			}
 		} finally {
-			this.txn.end();
+			txn.end();
+			if(pending != null) {
+				waitLoad(pending);
+			} else if(redoDelay >= 0) {
+				redoLater(redoDelay);
+			}
+		}
+	}
+	
+	private void reset() {
+		this.redoNum = 0;
+		this.lockKeys = null;
+		this.loadMissed = false;
+	}
+	
+	private static long backoff(int redoNum) {
+		int shift = redoNum - 2;
+		long delay = shift < 30 ? (long)procedure_redo_backoff_init << shift : procedure_redo_backoff_max;
+		return delay < procedure_redo_backoff_max ? delay : procedure_redo_backoff_max;
+	}
+	
+	/**
+	 * 如果在TaskQueue里执行并且当前任务还没有暂停该队列, 暂停该队列, 延迟后最先重做本Procedure, 保证队列里的任务顺序不变.
+	 * 否则延迟后交给TaskPool的阻塞线程池执行. Procedure可能阻塞在读存储与加锁上, 不能直接在定时器线程里执行.
+	 */
+	private void redoLater(long delay) {
+		this.stat.onBackoff();
+		log.debug("{} redo later. redo:{} delay:{}ms", this, this.redoNum, delay);
+		TaskQueue queue = TaskQueue.current();
+		// 同一个任务里已经有别的Procedure暂停了队列, 只能不按队列顺序重做
+		if(queue != null && !queue.isDeferred()) {
+			queue.defer(this, delay);
+		} else {
+			TaskPool.schedule(new Runnable() {
+				@Override
+				public void run() {
+					TaskPool.execute(Procedure.this);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * 异步加载模式下缓存未命中, 此时已经释放了所有锁, 没有线程等待存储.
+	 * 如果在TaskQueue里执行并且当前任务还没有暂停该队列, 挂起该队列, 加载完成后最先重新执行本Procedure, 保证队列里的任务顺序不变.
+	 * 否则加载完成后交给noblock线程池重新执行.
+	 */
+	private void waitLoad(Table.Loading loading) {
+		this.loadMissed = true;
+		this.loadWait = loading;
+		this.stat.onLoadWait();
+		log.debug("{} wait load.", this);
+		final TaskQueue queue = TaskQueue.current();
+		if(queue != null && !queue.isDeferred()) {
+			queue.suspend(this);
+			loading.addListener(new Runnable() {
+				@Override
+				public void run() {
+					queue.resume();
+				}
+			});
+		} else {
+			loading.addListener(new Runnable() {
+				@Override
+				public void run() {
+					TaskPool.executeNoBlock(Procedure.this);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * 在当前线程里检查缓存. 声明的key都已经在缓存里时不必挂起, 直接执行.
+	 */
+	private static boolean hasUncached(ArrayList<WKey> keys) {
+		if(keys == null) return false;
+		for(WKey key : keys) {
+			if(!key.getTable().getDataMap().containsKey(key.getKey())) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * 异步加载模式下有声明的key不在缓存里时, 在io线程里预取, 完成后与未命中一样重新执行.
+	 */
+	private Table.Loading prefetchAsync() {
+		final Table.Loading loading = new Table.Loading();
+		TaskPool.executeIO(new Runnable() {
+			@Override
+			public void run() {
+				Exception error = null;
+				try {
+					prefetch();
+				} catch(Exception e) {
+					error = e;
+				}
+				loading.complete(null, error);
+			}
+		});
+		return loading;
+	}
+	
+	/**
+	 * 事先声明执行过程中会访问的key, 必须在run之前调用(比如在构造函数里).
+	 * 执行前会按序锁定所有声明的key, 执行期间其他事务无法修改它们,
+	 * 所以只访问声明过的key的Procedure提交时不会冲突, 不会redo.
+	 * 适合事先知道key并且逻辑昂贵(比如lua脚本)或者key很热(比如公会,世界boss)的Procedure.
+	 * 执行期间调用Transaction.lockKeys锁定未声明的key会先释放所有锁, 不再有此保证;
+	 * Table.snapshot则只tryLock, 失败时冲突redo.
+	 */
+	public final void declareKey(WKey key) {
+		if(this.declaredKeys == null) {
+			this.declaredKeys = new ArrayList<WKey>();
+		}
+		if(!this.declaredKeys.contains(key)) {
+			this.declaredKeys.add(key);
+		}
+	}
+	
+	public final void declareKey(Table table, Object key) {
+		declareKey(new WKey(table, key));
+	}
+	
+	/**
+	 * 事先声明执行过程中会读取的key, 必须在run之前调用. 与declareKey不同, 只预取不加锁.
+	 */
+	public final void declarePrefetch(Table table, Object key) {
+		if(this.prefetchKeys == null) {
+			this.prefetchKeys = new ArrayList<WKey>();
+		}
+		this.prefetchKeys.add(new WKey(table, key));
+	}
+	
+	/**
+	 * 第一次执行execute之前调用, 不持有任何key的锁. 异步加载模式下如果有声明的key不在缓存里, 在io线程里调用.
+	 * 默认把declareKey与declarePrefetch声明的key合起来一次批量加载到缓存里(见Table.prefetch),
+	 * 避免execute里逐个key同步读存储. 需要动态计算key的(比如登录时根据角色id)可以重载它, 调用prefetch(Collection).
+	 */
+	protected void prefetch() throws Exception {
+		if(this.declaredKeys == null && this.prefetchKeys == null) return;
+		final ArrayList<WKey> keys = new ArrayList<WKey>();
+		if(this.declaredKeys != null) keys.addAll(this.declaredKeys);
+		if(this.prefetchKeys != null) keys.addAll(this.prefetchKeys);
+		prefetch(keys);
+	}
+	
+	/**
+	 * 按表分组, 所有表合起来一次批量加载.
+	 */
+	protected final void prefetch(Collection<WKey> keys) throws Exception {
+		final Map<Table, ArrayList<Object>> tableKeys = new HashMap<Table, ArrayList<Object>>();
+		for(WKey key : keys) {
+			ArrayList<Object> ks = tableKeys.get(key.getTable());
+			if(ks == null) {
+				ks = new ArrayList<Object>();
+				tableKeys.put(key.getTable(), ks);
+			}
+			ks.add(key.getKey());
 		}
+		Table.prefetch(tableKeys);
 	}
 	
+	public final ProcedureStat getStat() {
+		return this.stat;
+	}
+	
+	/**
+	 * 只读的Procedure不加锁提交, 见 ReadOnlyProcedure.
+	 */
+	protected boolean isReadOnly() { return false; }
+	
+	/**
+	 * 缓存未命中时是否异步加载: 不在当前线程读存储, 而是放弃本次执行, 释放锁后挂起,
+	 * 由io线程加载(TaskPool.executeIO), 加载完成后从头重新执行execute. 默认由procedure_async_load决定.
+	 * 与redo一样, execute可能执行多次, 副作用需要通过txn与net延迟到提交之后.
+	 */
+	protected boolean isAsyncLoad() { return procedure_async_load; }
+	
 	abstract protected void execute() throws Exception;
 	abstract protected void onRetError(int retcode, Object content);
 	protected void onDone() {}
@@ -0,0 +1,128 @@
+package fiber.db;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 每个Procedure类的统计数据: 执行次数, redo次数, 延迟分布等.
+ * 延迟以微秒为单位, 按2的幂分桶, 第i个桶统计 [2^(i-1), 2^i) 微秒.
+ * 异步加载模式下, 因缓存未命中挂起过的执行(miss)与没有挂起的执行(hit)另外分开统计平均延迟.
+ */
+public final class ProcedureStat {
+	public final static int LATENCY_BUCKET_NUM = 32;
+
+	private final String name;
+	private final AtomicLong doneNum = new AtomicLong();
+	private final AtomicLong retErrorNum = new AtomicLong();
+	private final AtomicLong exceptionNum = new AtomicLong();
+	private final AtomicLong redoNum = new AtomicLong();
+	private final AtomicLong backoffNum = new AtomicLong();
+	private final AtomicLong escalateNum = new AtomicLong();
+	private final AtomicLong loadWaitNum = new AtomicLong();
+	private final AtomicLong missNum = new AtomicLong();
+	private final AtomicLong missLatencyMicros = new AtomicLong();
+	private final AtomicLong totalLatencyMicros = new AtomicLong();
+	private final AtomicLongArray latencyBuckets = new AtomicLongArray(LATENCY_BUCKET_NUM);
+
+	private ProcedureStat(String name) {
+		this.name = name;
+	}
+
+	public final String getName() { return name; }
+	public final long getDoneNum() { return doneNum.get(); }
+	public final long getRetErrorNum() { return retErrorNum.get(); }
+	public final long getExceptionNum() { return exceptionNum.get(); }
+	public final long getRedoNum() { return redoNum.get(); }
+	public final long getBackoffNum() { return backoffNum.get(); }
+	public final long getEscalateNum() { return escalateNum.get(); }
+	public final long getTotalLatencyMicros() { return totalLatencyMicros.get(); }
+	// 因缓存未命中挂起的次数, 一次执行可能挂起多次
+	public final long getLoadWaitNum() { return loadWaitNum.get(); }
+	// 挂起过的执行数与它们的总延迟, 其余为hit
+	public final long getMissNum() { return missNum.get(); }
+	public final long getMissLatencyMicros() { return missLatencyMicros.get(); }
+	public final long getHitNum() { return getDoneNum() + getRetErrorNum() + getExceptionNum() - getMissNum(); }
+	public final long getHitLatencyMicros() { return getTotalLatencyMicros() - getMissLatencyMicros(); }
+	public final long getLatencyBucket(int index) { return latencyBuckets.get(index); }
+
+	final void onRedo() { redoNum.incrementAndGet(); }
+	final void onBackoff() { backoffNum.incrementAndGet(); }
+	final void onEscalate() { escalateNum.incrementAndGet(); }
+	final void onLoadWait() { loadWaitNum.incrementAndGet(); }
+
+	/**
+	 * @param miss 执行期间是否因缓存未命中挂起过
+	 */
+	final void onDone(long latencyNanos, boolean miss) {
+		doneNum.incrementAndGet();
+		addLatency(latencyNanos, miss);
+	}
+
+	final void onRetError(long latencyNanos, boolean miss) {
+		retErrorNum.incrementAndGet();
+		addLatency(latencyNanos, miss);
+	}
+
+	final void onException(long latencyNanos, boolean miss) {
+		exceptionNum.incrementAndGet();
+		addLatency(latencyNanos, miss);
+	}
+
+	private void addLatency(long latencyNanos, boolean miss) {
+		long micros = latencyNanos / 1000;
+		totalLatencyMicros.addAndGet(micros);
+		if(miss) {
+			missNum.incrementAndGet();
+			missLatencyMicros.addAndGet(micros);
+		}
+		int bucket = 64 - Long.numberOfLeadingZeros(micros);
+		latencyBuckets.incrementAndGet(bucket < LATENCY_BUCKET_NUM ? bucket : LATENCY_BUCKET_NUM - 1);
+	}
+
+	/**
+	 * @return 延迟的近似百分位数(微秒), 返回所在桶的上界. 比如percentile(0.99)
+	 */
+	public final long percentile(double p) {
+		long total = 0;
+		for(int i = 0 ; i < LATENCY_BUCKET_NUM ; i++) {
+			total += latencyBuckets.get(i);
+		}
+		if(total == 0) return 0;
+		long threshold = (long)Math.ceil(total * p);
+		long sum = 0;
+		for(int i = 0 ; i < LATENCY_BUCKET_NUM ; i++) {
+			sum += latencyBuckets.get(i);
+			if(sum >= threshold) return 1L << i;
+		}
+		return 1L << (LATENCY_BUCKET_NUM - 1);
+	}
+
+	@Override
+	public String toString() {
+		long num = getDoneNum() + getRetErrorNum() + getExceptionNum();
+		long hit = getHitNum();
+		long miss = getMissNum();
+		return String.format("ProcedureStat{name=%s, done=%d, retError=%d, exception=%d, redo=%d, backoff=%d, escalate=%d, loadWait=%d, avg=%dus, hitAvg=%dus, missAvg=%dus, p99<=%dus}",
+			name, getDoneNum(), getRetErrorNum(), getExceptionNum(), getRedoNum(), getBackoffNum(), getEscalateNum(), getLoadWaitNum(),
+			num > 0 ? getTotalLatencyMicros() / num : 0, hit > 0 ? getHitLatencyMicros() / hit : 0, miss > 0 ? getMissLatencyMicros() / miss : 0, percentile(0.99));
+	}
+
+	private final static ConcurrentMap<Class<?>, ProcedureStat> stats = new ConcurrentHashMap<Class<?>, ProcedureStat>();
+
+	public static ProcedureStat get(Class<?> cls) {
+		ProcedureStat stat = stats.get(cls);
+		if(stat == null) {
+			ProcedureStat newStat = new ProcedureStat(cls.getName());
+			stat = stats.putIfAbsent(cls, newStat);
+			if(stat == null) stat = newStat;
+		}
+		return stat;
+	}
+
+	public static Map<Class<?>, ProcedureStat> getAll() {
+		return stats;
+	}
+}
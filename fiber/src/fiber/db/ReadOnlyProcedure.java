@@ -0,0 +1,14 @@
+package fiber.db;
+
+/**
+ * 只读的Procedure. 比如查看背包,排行榜之类的查询请求.
+ * 提交时不获取LockPool的锁, 只校验读到的数据是否被其他事务修改,
+ * 所以不会与同一锁上的写事务互相等待.
+ * 如果在execute里修改了数据, commit时抛出IllegalStateException, 事务失败.
+ */
+public abstract class ReadOnlyProcedure extends Procedure {
+	@Override
+	protected final boolean isReadOnly() {
+		return true;
+	}
+}
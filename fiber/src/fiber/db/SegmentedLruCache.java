@@ -0,0 +1,272 @@
+package fiber.db;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import fiber.io.Const;
+
+/**
+ * 分段LRU. 新插入的key进入probation段, 再次被访问时晋升到protected段,
+ * protected段超出容量时把最久未访问的降回probation段. 淘汰时先淘汰probation段.
+ * 访问路径上不加锁: 命中只是写入按线程分片的有界环形缓冲, 满了就丢弃(只影响淘汰顺序的精度),
+ * 插入与删除写入无锁队列. 缓冲积累到一定数量时, 由恰好tryLock成功的线程批量整理链表,
+ * 每次访问的均摊开销为O(1).
+ */
+public class SegmentedLruCache extends TableCache {
+	private final static int table_cache_protected_percent = Const.getProperty("table_cache_protected_percent", 80, 0, 100);
+	// 每次shrink最多检查 要淘汰的数量*table_cache_shrink_scan 个节点, 避免ShrinkPolicy拒绝太多时退化为遍历整个表
+	private final static int table_cache_shrink_scan = Const.getProperty("table_cache_shrink_scan", 8, 1, 1024);
+	private final static int READ_BUFFER_SIZE = 32;
+	private final static int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+	private final static int WRITE_BUFFER_DRAIN = 32;
+	private final static int READ_BUFFER_STRIPES;
+	static {
+		int n = 1;
+		while(n < Runtime.getRuntime().availableProcessors() && n < 64) {
+			n <<= 1;
+		}
+		READ_BUFFER_STRIPES = n;
+	}
+
+	private static final class ReadBuffer {
+		private final AtomicLong writeCount = new AtomicLong();
+		// 只在锁内修改
+		private volatile long readCount;
+		private final AtomicReferenceArray<Node> slots = new AtomicReferenceArray<Node>(READ_BUFFER_SIZE);
+	}
+
+	protected final int capacity;
+	private final ReadBuffer[] readBuffers;
+	private final ConcurrentLinkedQueue<Node> writeBuffer;
+	private final AtomicInteger writePending;
+	private final ReentrantLock lock;
+	protected final Segment probation;
+	protected final Segment protect;
+	private final int protectedCapacity;
+	// 以下只在锁内访问
+	private int scanRemain;
+	private int removeRemain;
+	private long bytesRemain;
+
+	private final AtomicLong readDropNum;
+	private volatile long drainNum;
+
+	public SegmentedLruCache(int capacity) {
+		this(capacity, capacity);
+	}
+
+	/**
+	 * @param mainCapacity probation与protected段的总容量
+	 */
+	protected SegmentedLruCache(int capacity, int mainCapacity) {
+		this.capacity = capacity;
+		this.readBuffers = new ReadBuffer[READ_BUFFER_STRIPES];
+		for(int i = 0 ; i < this.readBuffers.length ; i++) {
+			this.readBuffers[i] = new ReadBuffer();
+		}
+		this.writeBuffer = new ConcurrentLinkedQueue<Node>();
+		this.writePending = new AtomicInteger();
+		this.lock = new ReentrantLock();
+		this.probation = new Segment(PROBATION);
+		this.protect = new Segment(PROTECTED);
+		this.protectedCapacity = (int)((long)mainCapacity * table_cache_protected_percent / 100);
+		this.readDropNum = new AtomicLong();
+	}
+
+	@Override
+	protected final Node newNode(Object key, TValue value) {
+		return new Node(key, value);
+	}
+
+	@Override
+	protected final void onInsert(Node node) {
+		if(node == null) return;
+		this.writeBuffer.offer(node);
+		if(this.writePending.incrementAndGet() >= WRITE_BUFFER_DRAIN) {
+			tryDrain();
+		}
+	}
+
+	@Override
+	protected final void onRemove(Node node) {
+		if(node == null) return;
+		node.removed = true;
+		this.writeBuffer.offer(node);
+		if(this.writePending.incrementAndGet() >= WRITE_BUFFER_DRAIN) {
+			tryDrain();
+		}
+	}
+
+	@Override
+	protected final void onAccess(Node node) {
+		if(node == null || node.removed) return;
+		final ReadBuffer b = this.readBuffers[(int)Thread.currentThread().getId() & (READ_BUFFER_STRIPES - 1)];
+		final long w = b.writeCount.get();
+		final long pending = w - b.readCount;
+		if(pending < READ_BUFFER_SIZE && b.writeCount.compareAndSet(w, w + 1)) {
+			b.slots.lazySet((int)(w & READ_BUFFER_MASK), node);
+		} else {
+			this.readDropNum.incrementAndGet();
+		}
+		if(pending >= READ_BUFFER_SIZE / 2) {
+			tryDrain();
+		}
+	}
+
+	private void tryDrain() {
+		// 访问路径可能持有key的锁, 这里只能tryLock, 见evict
+		if(this.lock.tryLock()) {
+			try {
+				drainBuffers();
+			} finally {
+				this.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * 只在锁内调用.
+	 */
+	private void drainBuffers() {
+		Node n;
+		while((n = this.writeBuffer.poll()) != null) {
+			this.writePending.decrementAndGet();
+			if(n.removed) {
+				if(n.queue != NONE) unlink(n);
+			} else if(n.queue == NONE) {
+				onAdd(n);
+			}
+		}
+		for(ReadBuffer b : this.readBuffers) {
+			long r = b.readCount;
+			final long w = b.writeCount.get();
+			for( ; r < w ; r++) {
+				final int i = (int)(r & READ_BUFFER_MASK);
+				n = b.slots.get(i);
+				// 生产者已经占了位置但还没写入, 下次再处理
+				if(n == null) break;
+				b.slots.lazySet(i, null);
+				if(!n.removed && n.queue != NONE) {
+					onRead(n);
+				}
+			}
+			b.readCount = r;
+		}
+		this.drainNum++;
+	}
+
+	private void unlink(Node n) {
+		segment(n.queue).remove(n);
+	}
+
+	protected Segment segment(int queue) {
+		return queue == PROTECTED ? this.protect : this.probation;
+	}
+
+	/**
+	 * 新节点. 只在锁内调用.
+	 */
+	protected void onAdd(Node n) {
+		this.probation.addLast(n);
+	}
+
+	/**
+	 * 节点被访问. 只在锁内调用.
+	 */
+	protected void onRead(Node n) {
+		if(n.queue == PROTECTED) {
+			this.protect.moveToLast(n);
+		} else if(n.queue == PROBATION) {
+			this.probation.remove(n);
+			this.protect.addLast(n);
+			while(this.protect.size() > this.protectedCapacity) {
+				Node demote = this.protect.first();
+				this.protect.remove(demote);
+				this.probation.addLast(demote);
+			}
+		}
+	}
+
+	/**
+	 * 先锁住引擎, 再逐个锁住key. 访问路径上可能先持有key的锁再通知引擎, 但那里只tryLock引擎的锁, 不会死锁.
+	 */
+	@Override
+	protected final int evict(Table table, int num, long bytes) {
+		this.lock.lock();
+		try {
+			drainBuffers();
+			// 按平均大小换算需要淘汰的条目数, 用于限制扫描的数量
+			final int size = table.size();
+			final long avg = size > 0 ? Math.max(table.getBytes() / size, 1) : 1;
+			final long expect = Math.max(num, bytes / avg + 1);
+			this.scanRemain = (int)Math.min(expect * table_cache_shrink_scan, Integer.MAX_VALUE);
+			this.removeRemain = num;
+			this.bytesRemain = bytes;
+			return evictOrdered(table);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * 按淘汰顺序调用evictSegment/tryEvict, 直到needEvict返回false. 只在锁内调用.
+	 */
+	protected int evictOrdered(Table table) {
+		int removed = evictSegment(table, this.probation);
+		removed += evictSegment(table, this.protect);
+		return removed;
+	}
+
+	protected final int evictSegment(Table table, Segment seg) {
+		int removed = 0;
+		Node n = seg.first();
+		while(n != null && needEvict()) {
+			final Node next = n.next;
+			if(tryEvict(table, n)) removed++;
+			n = next;
+		}
+		return removed;
+	}
+
+	/**
+	 * ShrinkPolicy拒绝或者key已经不在表里时返回false, 节点留在原处.
+	 */
+	protected final boolean tryEvict(Table table, Node n) {
+		this.scanRemain--;
+		final int weight = n.value.getWeight();
+		if(!table.evict(n.key, n.value)) return false;
+		n.removed = true;
+		unlink(n);
+		this.removeRemain--;
+		this.bytesRemain -= weight;
+		return true;
+	}
+
+	/**
+	 * @return 还没有淘汰足够的数量或字节数, 并且还可以继续扫描
+	 */
+	protected final boolean needEvict() {
+		return this.scanRemain > 0 && (this.removeRemain > 0 || this.bytesRemain > 0);
+	}
+
+	/////////////////////////////////////////////////////////
+	//  statistics
+	/////////////////////////////////////////////////////////
+	// 命中缓冲满而没有记录的访问次数
+	public final long getReadDropNum() {
+		return this.readDropNum.get();
+	}
+
+	public final long getDrainNum() {
+		return this.drainNum;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s{capacity=%d, probation=%d, protected=%d, readDrop=%d, drain=%d}",
+			getClass().getSimpleName(), this.capacity, this.probation.size(), this.protect.size(), getReadDropNum(), getDrainNum());
+	}
+}
@@ -0,0 +1,129 @@
+package fiber.db;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static fiber.io.Log.log;
+
+/**
+ * 某个表的一组key在同一时刻的一致性视图. 由Table.snapshot创建.
+ * 快照读不参与事务, 不会导致写事务冲突redo, 适合统计报表之类的长时间只读任务.
+ * 快照里的value是只读的, 不要修改.
+ */
+public final class Snapshot {
+	private final static int OPTIMISTIC_RETRY = 4;
+
+	public static final class Entry {
+		private final TValue tvalue;
+		private final long version;
+		private final Object value;
+		Entry(TValue tvalue) {
+			this.tvalue = tvalue;
+			// 先读version再读value, 见TValue.update
+			this.version = tvalue.getVersion();
+			this.value = tvalue.getValue();
+		}
+		public final long getVersion() {
+			return version;
+		}
+		public final Object getValue() {
+			return value;
+		}
+		final boolean isValid() {
+			return this.tvalue.getVersion() == this.version && !this.tvalue.isShrink();
+		}
+	}
+
+	private final Table table;
+	private final LinkedHashMap<Object, Entry> entries;
+
+	private Snapshot(Table table, int size) {
+		this.table = table;
+		this.entries = new LinkedHashMap<Object, Entry>(size * 2);
+	}
+
+	public final Table getTable() {
+		return table;
+	}
+
+	public final Object get(Object key) {
+		Entry e = this.entries.get(key);
+		return e != null ? e.getValue() : null;
+	}
+
+	/**
+	 * @return key在快照时的版本. key不在快照里时返回-1.
+	 */
+	public final long getVersion(Object key) {
+		Entry e = this.entries.get(key);
+		return e != null ? e.getVersion() : -1;
+	}
+
+	public final Map<Object, Entry> getEntries() {
+		return this.entries;
+	}
+
+	/**
+	 * @return 快照创建后, 是否没有任何key被修改过.
+	 */
+	public final boolean isLatest() {
+		for(Entry e : this.entries.values()) {
+			if(!e.isValid()) return false;
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Snapshot{table=%d, size=%d}", this.table.getId(), this.entries.size());
+	}
+
+	/**
+	 * 先不加锁读取, 用与只读事务相同的方式校验. 多次失败后阻塞地锁住所有key再读.
+	 */
+	static Snapshot create(Table table, Collection<?> keys) throws Exception {
+		final LockPool lp = LockPool.getInstance();
+		final LockSet ls = lp.newLockSet();
+		for(Object key : keys) {
+			ls.add(lp.lockid(WKey.keyHashCode(table.getId(), key)));
+		}
+		ls.sort();
+		for(int i = 0 ; i < OPTIMISTIC_RETRY ; i++) {
+			Snapshot snapshot = read(table, keys);
+			if(snapshot.validate(lp, ls)) return snapshot;
+			log.debug("{} optimistic read conflict. retry:{}", snapshot, i);
+		}
+		// 调用者可能正处于持锁(悲观redo或declareKey)的事务里, 直接按序阻塞加锁有死锁的可能,
+		// 释放事务的锁再重新加锁又会破坏declareKey的保证. 此时只tryLock缺少的锁, 失败则冲突redo.
+		final Transaction txn = Transaction.get();
+		if(txn.isLocked()) {
+			if(!txn.tryLockIds(ls)) {
+				log.debug("{} snapshot trylock fail. redo.", txn);
+				throw ConflictException.INSTANCE;
+			}
+			return read(table, keys);
+		}
+		lp.lock(ls);
+		try {
+			return read(table, keys);
+		} finally {
+			lp.unlock(ls);
+		}
+	}
+
+	private static Snapshot read(Table table, Collection<?> keys) throws Exception {
+		Snapshot snapshot = new Snapshot(table, keys.size());
+		for(Object key : keys) {
+			snapshot.entries.put(key, new Entry(table.get(key)));
+		}
+		return snapshot;
+	}
+
+	private boolean validate(LockPool lp, LockSet ls) {
+		for(int i = 0, n = ls.size() ; i < n ; i++) {
+			if(lp.isLocked(ls.get(i))) return false;
+		}
+		return isLatest();
+	}
+}
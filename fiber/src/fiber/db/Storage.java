@@ -2,6 +2,7 @@ package fiber.db;
 
 import java.util.ArrayList;
 import java.util.Map;
+import java.util.TreeMap;
 
 import fiber.io.Octets;
 
@@ -16,6 +17,46 @@ public abstract class Storage {
 	public abstract Map<Integer, ArrayList<Octets>> get(Map<Integer, ArrayList<Octets>> tableDatasMap);
 	public abstract boolean put(Map<Integer, ArrayList<Pair>> tableDatasMap);
 	
+	/**
+	 * 分多次写入, 一次提交. commit成功前中途失败或者进程崩溃, 已经写入的数据都不生效.
+	 */
+	public static interface PutTxn {
+		boolean put(Map<Integer, ArrayList<Pair>> tableDatasMap);
+		boolean commit();
+		void abort();
+	}
+	
+	/**
+	 * 默认实现先在内存里合并, commit时调用一次put(Map). 支持事务的存储应当重载, 边写边提交到同一个事务里.
+	 */
+	public PutTxn beginPut() {
+		final TreeMap<Integer, ArrayList<Pair>> merged = new TreeMap<Integer, ArrayList<Pair>>();
+		return new PutTxn() {
+			@Override
+			public boolean put(Map<Integer, ArrayList<Pair>> tableDatasMap) {
+				for(Map.Entry<Integer, ArrayList<Pair>> e : tableDatasMap.entrySet()) {
+					ArrayList<Pair> datas = merged.get(e.getKey());
+					if(datas == null) {
+						datas = new ArrayList<Pair>();
+						merged.put(e.getKey(), datas);
+					}
+					datas.addAll(e.getValue());
+				}
+				return true;
+			}
+			
+			@Override
+			public boolean commit() {
+				return Storage.this.put(merged);
+			}
+			
+			@Override
+			public void abort() {
+				merged.clear();
+			}
+		};
+	}
+	
 	public abstract boolean del(int tableid, Octets key);
 	
 	public abstract void walk(int tableid, Octets begin, Walker w);
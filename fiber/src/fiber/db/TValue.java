@@ -1,11 +1,21 @@
 package fiber.db;
 
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 import fiber.io.Timer;
 
 public final class TValue {
-	private boolean shrink = false;
+	private static final AtomicIntegerFieldUpdater<TValue> WEIGHT = AtomicIntegerFieldUpdater.newUpdater(TValue.class, "weight");
+	// 只读事务不加锁读取与校验, 故value与shrink需要volatile保证可见性.
+	private volatile boolean shrink = false;
 	private int lastAccessTime = Timer.currentTime();
-	private Object value;
+	private volatile Object value;
+	// 每次事务提交修改时递增. 用于冲突检测与快照读.
+	private volatile long version = 0;
+	// 缓存引擎的节点, 放入Table前设置, 见TableCache.newNode
+	TableCache.Node cacheNode;
+	// 估计占用的堆字节数, 计入Table.getBytes. 只能通过Table.updateWeight修改.
+	private volatile int weight;
 	
 	public TValue() {
 		this.value = null;
@@ -23,6 +33,19 @@ public final class TValue {
 		this.value = value;
 	}
 	
+	public final long getVersion() {
+		return version;
+	}
+	
+	/**
+	 * 只能在持有该key对应的锁时调用. 先写value再递增version,
+	 * 不加锁的读者先读version再读value,据此校验读到的value是否有效.
+	 */
+	final void update(Object value) {
+		this.value = value;
+		this.version++;
+	}
+
 	public final int getLastAccessTime() {
 		return lastAccessTime;
 	}
@@ -31,6 +54,14 @@ public final class TValue {
 		this.lastAccessTime = lastAccessTime;
 	}
 
+	public final int getWeight() {
+		return weight;
+	}
+
+	final int swapWeight(int weight) {
+		return WEIGHT.getAndSet(this, weight);
+	}
+
 	public final boolean isShrink() {
 		return shrink;
 	}
@@ -41,6 +72,6 @@ public final class TValue {
 
 	@Override
 	public String toString() {
-		return String.format("TValue{shrink=%s, lastAccessTime:%s, value=%s}", shrink, lastAccessTime, value);
+		return String.format("TValue{shrink=%s, lastAccessTime:%s, version:%s, weight:%s, value=%s}", shrink, lastAccessTime, version, weight, value);
 	}
 }
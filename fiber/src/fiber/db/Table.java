@@ -1,14 +1,30 @@
 package fiber.db;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 import fiber.common.Marshaller;
+import fiber.common.TaskPool;
+import fiber.io.Const;
 import static fiber.io.Log.log;
 import fiber.io.MarshalException;
+import fiber.io.Octets;
 import fiber.io.OctetsStream;
 
 public abstract class Table {
+	// 每个缓存条目(ConcurrentHashMap节点,TValue,缓存节点等)的固定开销估计
+	private final static int ENTRY_OVERHEAD = 128;
+	// 对象在堆上的大小与序列化后大小的比例(百分比)
+	private final static int table_size_factor = Const.getProperty("table_size_factor", 300, 100, 10000);
+	// 内存表提交修改时, 每table_size_sample次重新估计一次大小. 持久表在flush时用序列化的结果更新.
+	private final static int table_size_sample = Const.getProperty("table_size_sample", 8, 1, 1 << 20);
+	
 	private final ConcurrentHashMap<Object, TValue> map;
 	private final int id;
 	private final boolean persist;
@@ -16,8 +32,29 @@ public abstract class Table {
 	private final Marshaller msKey;
 	private final Marshaller msValue;
 	private final ShrinkPolicy policy;
+	private final TableCache cache;
+	private final AtomicLong hitNum;
+	private final AtomicLong missNum;
+	private final AtomicLong evictNum;
+	private final AtomicLong bytes;
+	// 正在加载的key. 同一个key同时只有一个线程在加载, 其他线程等待它的结果, 见load
+	private final ConcurrentHashMap<Object, Loading> loadings;
+	private final AtomicLong loadNum;
+	private final AtomicLong coalescedNum;
+	private final AtomicLong coalescedWaitNanos;
+	private final AtomicLong prefetchNum;
+	private final AtomicLong asyncLoadNum;
+	private final AtomicLong loadNanos;
+	// 0表示不限制
+	private volatile long maxbytes;
+	private volatile int shrinkPriority = 100;
+	private volatile SizeEstimator estimator = MARSHAL_ESTIMATOR;
 
 	public Table(int id, boolean persist, int maxsize, Marshaller msKey, Marshaller msValue, ShrinkPolicy policy) {
+		this(id, persist, maxsize, msKey, msValue, policy, TableCache.create(maxsize));
+	}
+	
+	public Table(int id, boolean persist, int maxsize, Marshaller msKey, Marshaller msValue, ShrinkPolicy policy, TableCache cache) {
 		this.id = id;
 		this.persist = persist;
 		this.maxsize = maxsize;
@@ -25,34 +62,373 @@ public abstract class Table {
 		this.msKey = msKey;
 		this.msValue = msValue;
 		this.policy = policy;
+		this.cache = cache;
+		this.hitNum = new AtomicLong();
+		this.missNum = new AtomicLong();
+		this.evictNum = new AtomicLong();
+		this.bytes = new AtomicLong();
+		this.loadings = new ConcurrentHashMap<Object, Loading>();
+		this.loadNum = new AtomicLong();
+		this.coalescedNum = new AtomicLong();
+		this.coalescedWaitNanos = new AtomicLong();
+		this.prefetchNum = new AtomicLong();
+		this.asyncLoadNum = new AtomicLong();
+		this.loadNanos = new AtomicLong();
 	}
 	
 	public final int getId() { return id; }
 	public final boolean isPersist() { return persist; }
 	public final int size() { return map.size(); }
 	public final int maxsize() { return this.maxsize; }
-	public final boolean overmaxsize() { return size() > maxsize(); }
+	public final boolean overmaxsize() { return size() > maxsize() || (this.maxbytes > 0 && getBytes() > this.maxbytes); }
 	protected int remainSizeAfterShrink() { return maxsize() * 4 / 5; }
+	protected long remainBytesAfterShrink() { return this.maxbytes * 4 / 5; }
+	
+	/**
+	 * @return 缓存的所有条目估计占用的堆字节数
+	 */
+	public final long getBytes() { return this.bytes.get(); }
+	public final long getMaxBytes() { return this.maxbytes; }
+	/**
+	 * @param maxbytes 缓存占用的堆字节数上限, 0表示只按maxsize限制.
+	 */
+	public final void setMaxBytes(long maxbytes) { this.maxbytes = maxbytes; }
+	public final int getShrinkPriority() { return this.shrinkPriority; }
+	/**
+	 * 超出全局内存预算时, 各表按 占用字节数/priority 的比例分摊需要淘汰的字节数.
+	 * 值越大越不容易被淘汰, 默认100.
+	 */
+	public final void setShrinkPriority(int priority) {
+		if(priority <= 0) throw new IllegalArgumentException("Illegal shrink priority:" + priority);
+		this.shrinkPriority = priority;
+	}
+	public final void setSizeEstimator(SizeEstimator estimator) { this.estimator = estimator; }
 	
 	public final Map<Object, TValue> getDataMap() { return map; }
 	protected final ShrinkPolicy getPolicy() { return policy; }
+	public final TableCache getCache() { return cache; }
 	
 	public TValue get(Object key) throws Exception {
 		TValue value = map.get(key);
 		if(value == null) {
-			TValue newValue = loadValue(key);
-			value = map.putIfAbsent(key, newValue);
-			return value != null ? value : newValue;
+			this.missNum.incrementAndGet();
+			return load(key);
 		} else {
+			this.hitNum.incrementAndGet();
+			this.cache.onAccess(value.cacheNode);
+			return value;
+		}
+	}
+	
+	static final class Loading {
+		private boolean done;
+		private TValue value;
+		private Exception error;
+		private ArrayList<Runnable> listeners;
+		
+		void complete(TValue value, Exception error) {
+			final ArrayList<Runnable> ls;
+			synchronized(this) {
+				this.value = value;
+				this.error = error;
+				this.done = true;
+				ls = this.listeners;
+				this.listeners = null;
+				notifyAll();
+			}
+			if(ls != null) {
+				for(Runnable r : ls) {
+					r.run();
+				}
+			}
+		}
+		
+		/**
+		 * 加载完成后在完成加载的线程里调用listener, 已经完成时直接在当前线程里调用. listener必须很快返回.
+		 */
+		void addListener(Runnable listener) {
+			synchronized(this) {
+				if(!this.done) {
+					if(this.listeners == null) this.listeners = new ArrayList<Runnable>(2);
+					this.listeners.add(listener);
+					return;
+				}
+			}
+			listener.run();
+		}
+		
+		synchronized Exception getError() {
+			return this.error;
+		}
+		
+		synchronized TValue await() throws Exception {
+			while(!this.done) {
+				wait();
+			}
+			if(this.error != null) throw this.error;
+			return this.value;
+		}
+	}
+	
+	/**
+	 * 同一个key并发的miss只有第一个线程调用loadValue, 其他线程等待它的结果(包括异常),
+	 * 所以冷启动时对存储的读取次数只与不同key的数量成正比.
+	 * 加载的线程先放入缓存再移除loadings, 所以在移除之后才登记的线程重新检查缓存就能看到结果.
+	 * 持久表在异步加载模式下(见Transaction.setAsyncLoad), 不在当前线程加载或等待,
+	 * 而是交给io线程加载, 把加载记在事务里并抛出LoadPendingException.
+	 */
+	private TValue load(Object key) throws Exception {
+		final Loading loading = new Loading();
+		final Loading other = this.loadings.putIfAbsent(key, loading);
+		final Transaction txn = this.persist ? Transaction.get() : null;
+		final boolean async = txn != null && txn.isAsyncLoad();
+		if(other != null) {
+			this.coalescedNum.incrementAndGet();
+			if(async) {
+				txn.setPendingLoad(other);
+				throw LoadPendingException.INSTANCE;
+			}
+			final long t1 = System.nanoTime();
+			try {
+				return other.await();
+			} finally {
+				this.coalescedWaitNanos.addAndGet(System.nanoTime() - t1);
+			}
+		}
+		if(async) {
+			final TValue value = this.map.get(key);
+			if(value != null) {
+				this.loadings.remove(key, loading);
+				loading.complete(value, null);
+				return value;
+			}
+			this.asyncLoadNum.incrementAndGet();
+			TaskPool.executeIO(new AsyncLoad(key, loading));
+			txn.setPendingLoad(loading);
+			throw LoadPendingException.INSTANCE;
+		}
+		return load(key, loading);
+	}
+	
+	private TValue load(Object key, Loading loading) throws Exception {
+		TValue value = null;
+		Exception error = null;
+		try {
+			value = this.map.get(key);
+			if(value == null) {
+				this.loadNum.incrementAndGet();
+				final long t1 = System.nanoTime();
+				TValue newValue = loadValue(key);
+				this.loadNanos.addAndGet(System.nanoTime() - t1);
+				value = putIfAbsent(key, newValue);
+				if(value == null) value = newValue;
+			}
 			return value;
+		} catch(Exception e) {
+			error = e;
+			throw e;
+		} finally {
+			this.loadings.remove(key, loading);
+			loading.complete(value, error);
+		}
+	}
+	
+	private final class AsyncLoad implements Runnable {
+		private final Object key;
+		private final Loading loading;
+		
+		AsyncLoad(Object key, Loading loading) {
+			this.key = key;
+			this.loading = loading;
+		}
+		
+		@Override
+		public void run() {
+			try {
+				load(this.key, this.loading);
+			} catch(Exception e) {
+				// 异常已经交给等待者
+				log.error("Table:{} async load key:{}", getId(), this.key, e);
+			}
+		}
+	}
+	
+	/**
+	 * 预先加载一组key到缓存里, 见prefetch(Map).
+	 */
+	public final void prefetch(Collection<?> keys) throws Exception {
+		prefetch(Collections.singletonMap(this, keys));
+	}
+	
+	/**
+	 * 预先加载多个表的一组key到缓存里. 已经在缓存里或者正在被其他线程加载的key直接跳过,
+	 * 其余key中需要读存储的, 所有表合起来只调用一次Storage.get(Map), 由存储按表按key的顺序批量读取.
+	 * 加载期间这些key与Table.get一样登记在loadings里, 并发的get会等待预取的结果.
+	 * 不参与事务, 也不加key的锁. 一般在Procedure.prefetch里调用, 见Procedure.
+	 */
+	public static void prefetch(Map<Table, ? extends Collection<?>> tableKeys) throws Exception {
+		final ArrayList<Prefetch> batches = new ArrayList<Prefetch>(tableKeys.size());
+		for(Map.Entry<Table, ? extends Collection<?>> e : tableKeys.entrySet()) {
+			Prefetch p = e.getKey().beginPrefetch(e.getValue());
+			if(p != null) batches.add(p);
+		}
+		if(batches.isEmpty()) return;
+		Exception error = null;
+		try {
+			final Map<Integer, ArrayList<Octets>> storageKeys = new HashMap<Integer, ArrayList<Octets>>();
+			for(Prefetch p : batches) {
+				p.preload(storageKeys);
+			}
+			if(!storageKeys.isEmpty()) {
+				final Map<Integer, ArrayList<Octets>> storageValues = Storage.getInstance().get(storageKeys);
+				for(Prefetch p : batches) {
+					p.fill(storageValues);
+				}
+			}
+		} catch(Exception e) {
+			error = e;
+			throw e;
+		} finally {
+			for(Prefetch p : batches) {
+				p.end(error);
+			}
+		}
+	}
+	
+	private static final class Prefetch {
+		private final Table table;
+		private final ArrayList<Object> keys = new ArrayList<Object>();
+		private final ArrayList<Loading> loadings = new ArrayList<Loading>();
+		private TValue[] values;
+		// 需要读存储的key在keys里的下标
+		private final ArrayList<Integer> storageIndexs = new ArrayList<Integer>();
+		
+		Prefetch(Table table) {
+			this.table = table;
+		}
+		
+		void preload(Map<Integer, ArrayList<Octets>> storageKeys) throws Exception {
+			this.values = new TValue[this.keys.size()];
+			final ArrayList<Octets> skeys = new ArrayList<Octets>();
+			for(int i = 0 ; i < this.values.length ; i++) {
+				this.values[i] = this.table.preload(this.keys.get(i), skeys);
+				if(this.values[i] == null) this.storageIndexs.add(i);
+			}
+			if(!skeys.isEmpty()) {
+				storageKeys.put(this.table.getId(), skeys);
+			}
+		}
+		
+		void fill(Map<Integer, ArrayList<Octets>> storageValues) throws Exception {
+			if(this.storageIndexs.isEmpty()) return;
+			final ArrayList<Octets> ovalues = storageValues.get(this.table.getId());
+			for(int j = 0 ; j < this.storageIndexs.size() ; j++) {
+				this.values[this.storageIndexs.get(j)] = this.table.loadFromStorage(ovalues.get(j));
+			}
+		}
+		
+		void end(Exception error) {
+			for(int i = 0 ; i < this.keys.size() ; i++) {
+				final Object key = this.keys.get(i);
+				TValue value = null;
+				if(error == null) {
+					value = this.table.putIfAbsent(key, this.values[i]);
+					if(value == null) value = this.values[i];
+				}
+				this.table.loadings.remove(key, this.loadings.get(i));
+				this.loadings.get(i).complete(value, error);
+			}
+		}
+	}
+	
+	/**
+	 * 登记不在缓存里也没有在加载的key. 与load一样, 登记之后再检查一次缓存.
+	 * @return 没有需要加载的key时返回null
+	 */
+	private Prefetch beginPrefetch(Collection<?> keys) {
+		Prefetch p = null;
+		for(Object key : keys) {
+			if(this.map.containsKey(key)) continue;
+			final Loading loading = new Loading();
+			if(this.loadings.putIfAbsent(key, loading) != null) continue;
+			final TValue value = this.map.get(key);
+			if(value != null) {
+				this.loadings.remove(key, loading);
+				loading.complete(value, null);
+				continue;
+			}
+			if(p == null) p = new Prefetch(this);
+			p.keys.add(key);
+			p.loadings.add(loading);
+		}
+		if(p != null) {
+			this.prefetchNum.addAndGet(p.keys.size());
+		}
+		return p;
+	}
+	
+	/**
+	 * 一致性地读取一组key, 不参与当前事务, 也不会导致其他事务冲突.
+	 */
+	public Snapshot snapshot(Collection<?> keys) throws Exception {
+		return Snapshot.create(this, keys);
+	}
+	public TValue put(Object key, TValue value) {
+		value.cacheNode = this.cache.newNode(key, value);
+		acquireWeight(value);
+		TValue old = map.put(key, value);
+		if(old != null) {
+			releaseWeight(old);
+			this.cache.onRemove(old.cacheNode);
 		}
+		this.cache.onInsert(value.cacheNode);
+		return old;
 	}
-	public Object put(Object key, TValue value) { return map.put(key, value); }
-	public Object putIfAbsent(Object key, TValue value) {	return map.putIfAbsent(key, value);	}
 	
-	public void onUpdate(Object key, TValue value) { }
+	public TValue putIfAbsent(Object key, TValue value) {
+		value.cacheNode = this.cache.newNode(key, value);
+		acquireWeight(value);
+		TValue old = map.putIfAbsent(key, value);
+		if(old == null) {
+			this.cache.onInsert(value.cacheNode);
+		} else {
+			releaseWeight(value);
+			value.cacheNode = null;
+			this.cache.onAccess(old.cacheNode);
+		}
+		return old;
+	}
+	
+	/**
+	 * 事务提交修改后, 持有key的锁时调用.
+	 */
+	public void onUpdate(Object key, TValue value) {
+		if(!this.persist && (value.getWeight() == 0 || ThreadLocalRandom.current().nextInt(table_size_sample) == 0)) {
+			updateWeight(value, estimateWeight(value.getValue()));
+		}
+	}
 	protected TValue loadValue(Object key) throws Exception { return new TValue(null); }
 	
+	/**
+	 * 用于批量加载. 不需要读存储就能得到value时返回它; 否则把key序列化后加入storageKeys, 返回null,
+	 * 之后用存储读到的结果调用loadFromStorage.
+	 */
+	protected TValue preload(Object key, ArrayList<Octets> storageKeys) throws Exception { return loadValue(key); }
+	
+	/**
+	 * 与preload配对: preload返回null的key, 用存储读到的结果调用它. 默认反序列化为value, 并用序列化的大小估计占用的内存.
+	 * @param ovalue 存储里的value, 不存在时为null
+	 */
+	protected TValue loadFromStorage(Octets ovalue) throws Exception {
+		TValue tvalue = new TValue();
+		if(ovalue != null) {
+			tvalue.setValue(this.unmarshalValue(OctetsStream.wrap(ovalue)));
+			// 放入缓存时才计入getBytes
+			tvalue.swapWeight(this.toHeapBytes(ovalue.size()));
+		}
+		return tvalue;
+	}
+	
 	public static interface Walk {
 		abstract boolean onProcess(Table table, Object key, TValue value);
 	}
@@ -69,6 +445,8 @@ public abstract class Table {
 		if(value != null) {
 			log.debug("Table:{} remove key:{} value:{}", this.getId(), key, value);
 			value.setShrink(true);
+			releaseWeight(value);
+			this.cache.onRemove(value.cacheNode);
 		}
 	}
 	
@@ -80,27 +458,132 @@ public abstract class Table {
 		boolean check(Object key, TValue value); 
 	}
 	
+	/**
+	 * 由缓存引擎按淘汰顺序挑选key, 见TableCache.
+	 */
 	public void shrink() {
+		shrink(this.size() - this.remainSizeAfterShrink(), this.maxbytes > 0 ? getBytes() - remainBytesAfterShrink() : 0);
+	}
+	
+	/**
+	 * 淘汰至少num个条目, 并且至少释放bytes字节.
+	 * @return 实际淘汰的条目数
+	 */
+	public int shrink(int num, long bytes) {
+		if(num <= 0 && bytes <= 0) return 0;
+		int removed = this.cache.evict(this, Math.max(num, 0), Math.max(bytes, 0));
+		this.evictNum.addAndGet(removed);
+		return removed;
+	}
+	
+	/**
+	 * 持有key对应的锁, ShrinkPolicy同意并且key仍然对应value时, 才从缓存里删除.
+	 * @return 是否删除
+	 */
+	final boolean evict(Object key, TValue value) {
+		if(!this.policy.check(key, value)) return false;
 		LockPool pool = LockPool.getInstance();
-		ShrinkPolicy policy = this.getPolicy();
-		int toRemoveNum = this.size() - this.remainSizeAfterShrink();
-		for(Map.Entry<Object, TValue> e : this.getDataMap().entrySet()) {
-			Object key = e.getKey();
-			TValue value = e.getValue();
-			if(policy.check(key, value)) {
-				int lockid = pool.lockid(WKey.keyHashCode(this.getId(), key));
-				pool.lock(lockid);
-				try {
-					// double check.
-					if(policy.check(key, value)) {
-						remove(key);
-						if(--toRemoveNum <= 0) break;
-					}	
-				} finally {
-					pool.unlock(lockid);
-				}
+		int lockid = pool.lockid(WKey.keyHashCode(this.getId(), key));
+		pool.lock(lockid);
+		try {
+			// double check.
+			if(this.policy.check(key, value) && this.map.get(key) == value) {
+				beforeEvict(key, value);
+				this.map.remove(key, value);
+				value.setShrink(true);
+				releaseWeight(value);
+				return true;
 			}
+			return false;
+		} finally {
+			pool.unlock(lockid);
+		}
+	}
+	
+	/**
+	 * 持有key的锁, 在从缓存里删除之前调用. 见TablePer的负缓存.
+	 */
+	protected void beforeEvict(Object key, TValue value) {
+	}
+	
+	/////////////////////////////////////////////////////////
+	//  size estimate
+	/////////////////////////////////////////////////////////
+	public static interface SizeEstimator {
+		/**
+		 * @return value序列化后的近似字节数, value不为null
+		 */
+		int estimate(Table table, Object value);
+	}
+	
+	public final static SizeEstimator MARSHAL_ESTIMATOR = new SizeEstimator() {
+		@Override
+		public int estimate(Table table, Object value) {
+			OctetsStream os = OctetsStream.create(256);
+			table.marshalValue(os, value);
+			return os.size();
 		}
+	};
+	
+	/**
+	 * 由序列化后的大小换算堆占用.
+	 */
+	public final int toHeapBytes(int marshalSize) {
+		return (int)Math.min((long)marshalSize * table_size_factor / 100 + ENTRY_OVERHEAD, Integer.MAX_VALUE);
+	}
+	
+	public final int estimateWeight(Object value) {
+		return value != null ? toHeapBytes(this.estimator.estimate(this, value)) : ENTRY_OVERHEAD;
+	}
+	
+	/**
+	 * 更新缓存条目的估计大小. 可以在任意线程调用, 不需要持有key的锁.
+	 * 每次swap都把差值计入bytes; 删除时先setShrink再把weight换成0,
+	 * 所以在删除之后才swap的调用一定能看到shrink, 再把自己加上的换回来, bytes不会漂移.
+	 */
+	final void updateWeight(TValue value, int weight) {
+		this.bytes.addAndGet(weight - value.swapWeight(weight));
+		if(value.isShrink()) {
+			releaseWeight(value);
+		}
+	}
+	
+	/**
+	 * 放入缓存之前调用, 此时value还只有当前线程可见. 放入前设置的weight(比如加载时由存储的大小得到)此时才计入bytes.
+	 * 放入之后其他线程就可能updateWeight, 所以不能等放入之后再计入.
+	 */
+	private void acquireWeight(TValue value) {
+		int weight = value.getWeight();
+		if(weight <= 0) {
+			weight = estimateWeight(value.getValue());
+			value.swapWeight(weight);
+		}
+		this.bytes.addAndGet(weight);
+	}
+	
+	private void releaseWeight(TValue value) {
+		this.bytes.addAndGet(-value.swapWeight(0));
+	}
+	
+	public final long getHitNum() { return this.hitNum.get(); }
+	public final long getMissNum() { return this.missNum.get(); }
+	public final long getEvictNum() { return this.evictNum.get(); }
+	// 实际调用loadValue的次数
+	public final long getLoadNum() { return this.loadNum.get(); }
+	// 其中交给io线程异步加载的次数
+	public final long getAsyncLoadNum() { return this.asyncLoadNum.get(); }
+	// loadValue的总时间, 除以getLoadNum即为未命中的平均加载延迟
+	public final long getLoadNanos() { return this.loadNanos.get(); }
+	// 等待其他线程加载同一个key的次数与总时间
+	public final long getCoalescedNum() { return this.coalescedNum.get(); }
+	public final long getCoalescedWaitNanos() { return this.coalescedWaitNanos.get(); }
+	// 由prefetch加载的key数
+	public final long getPrefetchNum() { return this.prefetchNum.get(); }
+	
+	@Override
+	public String toString() {
+		return String.format("Table{id=%d, size=%d, maxsize=%d, bytes=%d, maxbytes=%d, hit=%d, miss=%d, load=%d, asyncLoad=%d, avgLoad=%dus, prefetch=%d, coalesced=%d, coalescedWait=%dus, evict=%d, cache=%s}",
+			getId(), size(), maxsize(), getBytes(), getMaxBytes(), getHitNum(), getMissNum(), getLoadNum(), getAsyncLoadNum(), getLoadNum() > 0 ? getLoadNanos() / getLoadNum() / 1000 : 0, getPrefetchNum(), getCoalescedNum(), getCoalescedWaitNanos() / 1000, getEvictNum(), this.cache);
 	}
 	
 	public final void marshalKey(OctetsStream os, Object key) {
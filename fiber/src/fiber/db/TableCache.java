@@ -0,0 +1,147 @@
+package fiber.db;
+
+import java.util.Map;
+
+import fiber.io.Const;
+
+/**
+ * Table缓存的淘汰引擎. Table在命中,插入,删除时通知引擎, shrink时由引擎挑选淘汰的key.
+ * 真正的删除由Table.evict完成: 持有key对应的锁, 经ShrinkPolicy同意后才删除并setShrink,
+ * 所以引擎只决定淘汰顺序, 不会破坏事务的一致性.
+ * table_cache_engine: 0 遍历整个表(旧的实现); 1 分段LRU; 2 W-TinyLFU.
+ */
+public abstract class TableCache {
+	private final static int table_cache_engine = Const.getProperty("table_cache_engine", 2, 0, 2);
+
+	public static TableCache create(int capacity) {
+		switch(table_cache_engine) {
+			case 0: return new ScanCache();
+			case 1: return new SegmentedLruCache(capacity);
+			default: return new TinyLfuCache(capacity);
+		}
+	}
+
+	static final int NONE = 0;
+	static final int WINDOW = 1;
+	static final int PROBATION = 2;
+	static final int PROTECTED = 3;
+
+	/**
+	 * 引擎为每个缓存的key维护的节点, 保存在TValue里. 链表字段只在引擎的锁内访问.
+	 */
+	static final class Node {
+		final Object key;
+		final TValue value;
+		Node prev;
+		Node next;
+		int queue = NONE;
+		volatile boolean removed;
+		Node(Object key, TValue value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * 双向链表, 表头为最久未访问的节点.
+	 */
+	static final class Segment {
+		private final int queue;
+		private Node head;
+		private Node tail;
+		private int size;
+
+		Segment(int queue) {
+			this.queue = queue;
+		}
+
+		int size() { return this.size; }
+		Node first() { return this.head; }
+		Node last() { return this.tail; }
+
+		void addLast(Node n) {
+			n.queue = this.queue;
+			n.prev = this.tail;
+			n.next = null;
+			if(this.tail != null) {
+				this.tail.next = n;
+			} else {
+				this.head = n;
+			}
+			this.tail = n;
+			this.size++;
+		}
+
+		void remove(Node n) {
+			if(n.prev != null) {
+				n.prev.next = n.next;
+			} else {
+				this.head = n.next;
+			}
+			if(n.next != null) {
+				n.next.prev = n.prev;
+			} else {
+				this.tail = n.prev;
+			}
+			n.prev = n.next = null;
+			n.queue = NONE;
+			this.size--;
+		}
+
+		void moveToLast(Node n) {
+			if(n == this.tail) return;
+			remove(n);
+			addLast(n);
+		}
+	}
+
+	/**
+	 * 在key放入表之前调用, 返回的节点保存在TValue里. 不需要节点的引擎返回null.
+	 */
+	protected Node newNode(Object key, TValue value) {
+		return null;
+	}
+
+	/**
+	 * key放入表之后调用. 以下回调都可能在任意线程里并发调用, 必须很快返回, node可能为null.
+	 */
+	protected void onInsert(Node node) {
+	}
+
+	protected void onAccess(Node node) {
+	}
+
+	protected void onRemove(Node node) {
+	}
+
+	/**
+	 * 按引擎的淘汰顺序, 通过table.evict删除key, 直到删除了num个并且释放了bytes字节.
+	 * @return 实际删除的数量
+	 */
+	protected abstract int evict(Table table, int num, long bytes);
+
+	/**
+	 * 旧的实现: 按ConcurrentHashMap的遍历顺序淘汰, 与访问频率无关, 每次O(table).
+	 */
+	public static final class ScanCache extends TableCache {
+		@Override
+		protected int evict(Table table, int num, long bytes) {
+			int removed = 0;
+			for(Map.Entry<Object, TValue> e : table.getDataMap().entrySet()) {
+				final TValue value = e.getValue();
+				final int weight = value.getWeight();
+				if(table.evict(e.getKey(), value)) {
+					removed++;
+					bytes -= weight;
+					if(removed >= num && bytes <= 0) break;
+				}
+			}
+			return removed;
+		}
+
+		@Override
+		public String toString() {
+			return "ScanCache";
+		}
+	}
+}
@@ -20,6 +20,11 @@ public class TableMem extends Table {
 		super(id, false, maxsize, msKey, msValue, policy);
 	}
 	
+	public TableMem(int id, int maxsize, Marshaller msKey,
+			Marshaller msValue, ShrinkPolicy policy, TableCache cache) {
+		super(id, false, maxsize, msKey, msValue, policy, cache);
+	}
+	
 	public TableMem(int id, int maxsize, Marshaller msKey,
 			Marshaller msValue) {
 		super(id, false, maxsize, msKey, msValue, DEFAULT_POLICY);
@@ -1,6 +1,10 @@
 package fiber.db;
 
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import fiber.common.Marshaller;
 import fiber.io.Const;
@@ -23,12 +27,24 @@ public class TablePer extends Table {
 	
 	private final static int DEFAULT_SHRINK_EXPIRE_TIME = Const.getProperty("table_persist_shrink_expire_time", 600, 1, Integer.MAX_VALUE);
 	private final static RemoveExpirePolicy DEFAULT_POLICY = new RemoveExpirePolicy(DEFAULT_SHRINK_EXPIRE_TIME);
+	// 负缓存: 被淘汰时value为null(存储里不存在)的key, 在有效期(秒)内再次加载时不读存储. 0表示关闭.
+	private final static int table_negative_cache_ttl = Const.getProperty("table_negative_cache_ttl", 60, 0, Integer.MAX_VALUE);
+	private final static int table_negative_cache_max = Const.getProperty("table_negative_cache_max", 65536, 0, Integer.MAX_VALUE);
+	
+	// key => 过期时间
+	private final ConcurrentHashMap<Object, Integer> absentKeys = new ConcurrentHashMap<Object, Integer>();
+	private final AtomicLong negativeHitNum = new AtomicLong();
 
 	public TablePer(int id, int maxsize, Marshaller msKey,
 			Marshaller msValue, ShrinkPolicy policy) {
 		super(id, true, maxsize, msKey, msValue, policy);
 	}
 	
+	public TablePer(int id, int maxsize, Marshaller msKey,
+			Marshaller msValue, ShrinkPolicy policy, TableCache cache) {
+		super(id, true, maxsize, msKey, msValue, policy, cache);
+	}
+	
 	public TablePer(int id, int maxsize, Marshaller msKey,
 			Marshaller msValue) {
 		super(id, true, maxsize, msKey, msValue, DEFAULT_POLICY);
@@ -36,18 +52,59 @@ public class TablePer extends Table {
 
 	@Override
 	protected TValue loadValue(Object key) throws Exception {
+		ArrayList<Octets> storageKeys = new ArrayList<Octets>(1);
+		TValue tvalue = preload(key, storageKeys);
+		if(tvalue != null) return tvalue;
+		return loadFromStorage(Storage.getInstance().get(this.getId(), storageKeys.get(0)));
+	}
+	
+	@Override
+	protected TValue preload(Object key, ArrayList<Octets> storageKeys) throws Exception {
 		TValue tvalue = new TValue();
 		if(Transaction.getDirtyData(new WKey(this, key), tvalue)) return tvalue;
+		// 不管是否过期都移除: 放入缓存后由缓存里的null代表不存在
+		Integer expire = this.absentKeys.remove(key);
+		if(expire != null && expire >= Timer.currentTime()) {
+			this.negativeHitNum.incrementAndGet();
+			return tvalue;
+		}
 		OctetsStream os = OctetsStream.create(8);
 		this.marshalKey(os, key);
-		Octets ovalue = Storage.getInstance().get(this.getId(), os.toOctets());
-		if(ovalue != null) {
-			OctetsStream vos = OctetsStream.wrap(ovalue);
-			tvalue.setValue(this.unmarshalValue(vos));
+		storageKeys.add(os.toOctets());
+		return null;
+	}
+	
+	/**
+	 * 在从缓存里删除之前记下不存在的key, 这样删除之后的加载一定能看到它.
+	 * 提交修改需要持有key的锁, 所以此时的null就是最新的值(被删除的记录在flush之前由getDirtyData优先返回).
+	 */
+	@Override
+	protected void beforeEvict(Object key, TValue value) {
+		if(table_negative_cache_ttl <= 0 || value.getValue() != null) return;
+		final int now = Timer.currentTime();
+		if(this.absentKeys.size() >= table_negative_cache_max) {
+			for(Iterator<Integer> it = this.absentKeys.values().iterator() ; it.hasNext() ; ) {
+				if(it.next() < now) it.remove();
+			}
+			if(this.absentKeys.size() >= table_negative_cache_max) return;
 		}
-		return tvalue;
+		this.absentKeys.put(key, now + table_negative_cache_ttl);
 	}
 	
+	@Override
+	public TValue put(Object key, TValue value) {
+		this.absentKeys.remove(key);
+		return super.put(key, value);
+	}
+	
+	public final int getNegativeSize() {
+		return this.absentKeys.size();
+	}
+	
+	// 由负缓存得知不存在, 没有读存储的次数
+	public final long getNegativeHitNum() {
+		return this.negativeHitNum.get();
+	}
 	
 	@Override
 	public void walk(final Walk w) {
@@ -0,0 +1,96 @@
+package fiber.db;
+
+import fiber.io.Const;
+
+/**
+ * W-TinyLFU. 在分段LRU前面加一个很小的window段(LRU), 新key先进入window,
+ * 从window挤出后进入probation段成为候选. 淘汰时比较候选(probation表尾)与牺牲者(probation表头)
+ * 在FrequencySketch里的访问频率, 只有候选更热时才淘汰牺牲者, 否则淘汰候选.
+ * 这样偶尔访问一次的key(比如遍历,一次性登录)不会把经常访问的key挤出缓存.
+ */
+public class TinyLfuCache extends SegmentedLruCache {
+	private final static int table_cache_window_percent = Const.getProperty("table_cache_window_percent", 1, 0, 100);
+	// FrequencySketch初始容量与最大容量(long的个数, 每个8字节), 按实际条目数在二者之间增长
+	private final static int table_cache_sketch_init = Const.getProperty("table_cache_sketch_init", 1024, 16, 1 << 30);
+	private final static int table_cache_sketch_max = Const.getProperty("table_cache_sketch_max", 1 << 20, 16, 1 << 30);
+
+	private final Segment window;
+	private final int windowCapacity;
+	private final FrequencySketch sketch;
+	private final int sketchMax;
+
+	public TinyLfuCache(int capacity) {
+		super(capacity, capacity - windowCapacity(capacity));
+		this.windowCapacity = windowCapacity(capacity);
+		this.window = new Segment(WINDOW);
+		// 不按capacity一次分配, capacity可能是Integer.MAX_VALUE
+		this.sketchMax = Math.min(capacity, table_cache_sketch_max);
+		this.sketch = new FrequencySketch(Math.min(this.sketchMax, table_cache_sketch_init));
+	}
+
+	private static int windowCapacity(int capacity) {
+		return Math.max(1, (int)((long)capacity * table_cache_window_percent / 100));
+	}
+
+	@Override
+	protected Segment segment(int queue) {
+		return queue == WINDOW ? this.window : super.segment(queue);
+	}
+
+	@Override
+	protected void onAdd(Node n) {
+		final int size = this.window.size() + this.probation.size() + this.protect.size() + 1;
+		if(size > this.sketch.capacity() && this.sketch.capacity() < this.sketchMax) {
+			this.sketch.ensureCapacity(Math.min(size, this.sketchMax));
+		}
+		this.sketch.increment(n.key);
+		this.window.addLast(n);
+		while(this.window.size() > this.windowCapacity) {
+			Node candidate = this.window.first();
+			this.window.remove(candidate);
+			this.probation.addLast(candidate);
+		}
+	}
+
+	@Override
+	protected void onRead(Node n) {
+		this.sketch.increment(n.key);
+		if(n.queue == WINDOW) {
+			this.window.moveToLast(n);
+		} else {
+			super.onRead(n);
+		}
+	}
+
+	@Override
+	protected int evictOrdered(Table table) {
+		int removed = 0;
+		Node victim = this.probation.first();
+		Node candidate = this.probation.last();
+		// victim从表头向后, candidate从表尾向前, 每次移动其中一个, 相遇后只按victim的顺序淘汰
+		while(victim != null && needEvict()) {
+			final Node target;
+			if(candidate == null || candidate == victim) {
+				target = victim;
+				victim = victim.next;
+				candidate = null;
+			} else if(this.sketch.frequency(candidate.key) > this.sketch.frequency(victim.key)) {
+				target = victim;
+				victim = victim.next;
+			} else {
+				target = candidate;
+				candidate = candidate.prev;
+			}
+			if(tryEvict(table, target)) removed++;
+		}
+		removed += evictSegment(table, this.window);
+		removed += evictSegment(table, this.protect);
+		return removed;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("TinyLfuCache{capacity=%d, window=%d, probation=%d, protected=%d, readDrop=%d, drain=%d}",
+			this.capacity, this.window.size(), this.probation.size(), this.protect.size(), getReadDropNum(), getDrainNum());
+	}
+}
@@ -1,9 +1,11 @@
 package fiber.db;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -127,7 +129,13 @@ public class Transaction {
 	
 	private final HashMap<WKey, WValue> dataMap;
 	private final Dispatcher dispatcher;
-	private final TreeSet<Integer> lockSet;
+	private final LockSet lockSet;
+	private final ArrayList<WKey> conflictKeys;
+	
+	private boolean readOnly = false;
+	private boolean asyncLoad = false;
+	// 异步加载模式下第一个未命中的key的加载, 见Table.get
+	private Table.Loading pendingLoad = null;
 	
 	private long cacheTxnid = 0;
 	private int cacheNow = 0;
@@ -136,7 +144,8 @@ public class Transaction {
 	private long txnid;
 	public Transaction() {
 		this.dataMap = new HashMap<WKey, WValue>();
-		this.lockSet = new TreeSet<Integer>();
+		this.lockSet = LockPool.getInstance().newLockSet();
+		this.conflictKeys = new ArrayList<WKey>();
 		this.dispatcher = new Dispatcher();
 		this.txnid = 0;
 	}
@@ -168,6 +177,42 @@ public class Transaction {
 		return this.cacheNow;
 	}
 	
+	public final boolean isReadOnly() {
+		return this.readOnly;
+	}
+	
+	/**
+	 * 只读事务不允许修改任何数据, 否则commit时抛出IllegalStateException.
+	 */
+	public final void setReadOnly(boolean readOnly) {
+		this.readOnly = readOnly;
+	}
+	
+	public final boolean isAsyncLoad() {
+		return this.asyncLoad;
+	}
+	
+	/**
+	 * 异步加载模式下, 缓存未命中时Table.get不在当前线程读存储,
+	 * 而是交给io线程加载并抛出LoadPendingException. 只能在能够挂起重做的地方开启, 见Procedure.
+	 */
+	public final void setAsyncLoad(boolean asyncLoad) {
+		this.asyncLoad = asyncLoad;
+	}
+	
+	final void setPendingLoad(Table.Loading loading) {
+		if(this.pendingLoad == null) this.pendingLoad = loading;
+	}
+	
+	/**
+	 * @return 本次执行中等待的加载, 并清除. 即使LoadPendingException被使用者捕获, 也能由此得知.
+	 */
+	final Table.Loading takePendingLoad() {
+		final Table.Loading loading = this.pendingLoad;
+		this.pendingLoad = null;
+		return loading;
+	}
+	
 	public final void prepare() {
 		this.txnid = TXN_ID.incrementAndGet();
 		//this.clearDatas();
@@ -175,14 +220,21 @@ public class Transaction {
 	
 	public void commit() throws ConflictException {
 		log.debug("{} commit. start.", this);
+		final boolean modify = hasModify();
+		if(!modify && this.lockSet.isEmpty()) {
+			commitReadOnly();
+			log.debug("{} commit readonly. end.", this);
+			return;
+		}
+		if(modify && this.readOnly) {
+			throw new IllegalStateException(this + " readonly transaction modify data");
+		}
 		this.lock();
-		for(WValue value : this.dataMap.values()) {
-			if(value.isConflict() || value.getTvalue().isShrink()) {
-				// 一般来说,检查到冲突后会redo,出于优化考虑
-				// 不释放锁.
-				log.debug("{} confliction detected!", this);
-				throw ConflictException.INSTANCE;
-			}
+		if(checkConflict()) {
+			// 一般来说,检查到冲突后会redo,出于优化考虑
+			// 不释放锁.
+			log.debug("{} confliction detected! keys:{}", this, this.conflictKeys);
+			throw ConflictException.INSTANCE;
 		}
 		for(Map.Entry<WKey, WValue> e : this.dataMap.entrySet()) {
 			WKey key = e.getKey();
@@ -196,6 +248,61 @@ public class Transaction {
 		log.debug("{} commit. end.", this);
 	}
 	
+	/**
+	 * 检查所有数据是否被其他事务修改过, 冲突的key记录在conflictKeys里.
+	 */
+	private boolean checkConflict() {
+		this.conflictKeys.clear();
+		for(Map.Entry<WKey, WValue> e : this.dataMap.entrySet()) {
+			WValue value = e.getValue();
+			if(value.isConflict() || value.getTvalue().isShrink()) {
+				this.conflictKeys.add(e.getKey());
+			}
+		}
+		return !this.conflictKeys.isEmpty();
+	}
+	
+	/**
+	 * @return 最近一次commit检测到冲突的key. 在下次commit前有效.
+	 */
+	public final List<WKey> getConflictKeys() {
+		return this.conflictKeys;
+	}
+	
+	private boolean hasModify() {
+		for(WValue value : this.dataMap.values()) {
+			if(value.isModify()) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * 没有修改任何数据的事务不加锁, 直接校验读到的数据是否仍然有效.
+	 * 写事务只在持有锁期间修改TValue, 所以只要校验时对应的锁未被持有
+	 * 并且数据未变化, 读到的就是一致的快照.
+	 * 校验失败时获取锁后再抛出ConflictException, redo时与普通事务一样持锁执行, 保证成功.
+	 */
+	private void commitReadOnly() throws ConflictException {
+		LockPool lp = LockPool.getInstance();
+		this.conflictKeys.clear();
+		for(Map.Entry<WKey, WValue> e : this.dataMap.entrySet()) {
+			WKey key = e.getKey();
+			WValue value = e.getValue();
+			if(lp.isLocked(lp.lockid(key.hashCode())) || value.isConflict() || value.getTvalue().isShrink()) {
+				this.conflictKeys.add(key);
+			}
+		}
+		if(!this.conflictKeys.isEmpty()) {
+			log.debug("{} readonly confliction detected! keys:{}", this, this.conflictKeys);
+			this.lock();
+			throw ConflictException.INSTANCE;
+		}
+		for(WValue value : this.dataMap.values()) {
+			value.commit();
+		}
+		this.dispatcher.commit();
+	}
+	
 	public void rollback() {
 		this.clearDatas();
 		this.unlock();
@@ -214,6 +321,10 @@ public class Transaction {
 	
 	public void end() {
 		this.clearDatas();
+		this.readOnly = false;
+		this.asyncLoad = false;
+		this.pendingLoad = null;
+		this.conflictKeys.clear();
 		this.unlock();
 		log.debug("{} end", this);
 	}
@@ -248,25 +359,69 @@ public class Transaction {
 	 * 一个非常有效的优化是, 如果redo, 不释放此次已经锁定的lock,
 	 * 绝大多数情况下(>99%),redo里使用到的lock应该和当前已经锁定的lock完全相同,
 	 * 那么由于已经事先持有锁,本次操作肯定会成功.
+	 * 如果redo里用到了新的lock, 释放后按序重新锁定新旧lock的并集,
+	 * 这样多次redo后持有的lock只增不减, 最终必然成功.
 	 */
 	public void lock() {
+		lockKeys(this.dataMap.keySet());
+	}
+	
+	/**
+	 * 事先锁定keys对应的lock, 直到事务结束才释放.
+	 * 在访问数据之前调用(比如在Procedure.execute之前), 可以保证提交时不会冲突.
+	 */
+	public void lockKeys(Collection<WKey> keys) {
 		LockPool lp = LockPool.getInstance();
-		if(this.lockSet.isEmpty()) {
-			for(WKey key : this.dataMap.keySet()) {
-				int lockid = lp.lockid(key.hashCode());
-				this.lockSet.add(lockid);
-			}
+		boolean missing = false;
+		for(WKey key : keys) {
+			missing = addLock(lp.lockid(key.hashCode()), missing);
+		}
+		if(missing) {
+			this.lockSet.sort();
 			doLock();
-		} else {
-			for(WKey key : this.dataMap.keySet()) {
-				int lockid = lp.lockid(key.hashCode());
-				if(!this.lockSet.contains(lockid)) {
-					unlock();
-					lock();
-					return;
-				}
+		}
+	}
+	
+	/**
+	 * 不释放已持有的锁, 只tryLock ids里还没有持有的锁, 成功后保留到事务结束.
+	 * 失败时不持有任何新锁并返回false. 保证declareKey锁定的key在执行期间不会被释放.
+	 */
+	final boolean tryLockIds(LockSet ids) {
+		final LockPool lp = LockPool.getInstance();
+		final LockSet extra = lp.newLockSet();
+		for(int i = 0, n = ids.size() ; i < n ; i++) {
+			if(!this.lockSet.contains(ids.get(i))) extra.add(ids.get(i));
+		}
+		if(extra.isEmpty()) return true;
+		extra.sort();
+		if(!lp.tryLock(extra)) return false;
+		for(int i = 0, n = extra.size() ; i < n ; i++) {
+			this.lockSet.add(extra.get(i));
+		}
+		this.lockSet.sort();
+		return true;
+	}
+	
+	/**
+	 * 第一次遇到没有持有的锁时释放所有锁, 之后由调用者排序后按序重新加锁, 避免死锁.
+	 */
+	private boolean addLock(int lockid, boolean missing) {
+		if(!this.lockSet.contains(lockid)) {
+			if(!missing) {
+				missing = true;
+				doUnlock();
 			}
+			this.lockSet.add(lockid);
 		}
+		return missing;
+	}
+	
+	final boolean isLocked() {
+		return !this.lockSet.isEmpty();
+	}
+	
+	public void lockKeys(WKey... keys) {
+		lockKeys(Arrays.asList(keys));
 	}
 	
 	public final void unlock() {
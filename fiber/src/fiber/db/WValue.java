@@ -5,10 +5,14 @@ import fiber.io.Timer;
 public final class WValue {
 	private final TValue tvalue;
 	private final Object originValue;
+	private final long originVersion;
 	private Object curValue;
 	private Object wrapper;
 	public WValue(TValue tv) {
 		this.tvalue = tv;
+		// 必须先读version再读value. 如果期间有其他事务提交,
+		// 读到的value可能比version新, 但commit时肯定能检测到冲突.
+		this.originVersion = tv.getVersion();
 		this.curValue = this.originValue = tv.getValue();
 	}
 	
@@ -28,6 +32,10 @@ public final class WValue {
 		return originValue;
 	}
 	
+	public final long getOriginVersion() {
+		return originVersion;
+	}
+	
 	public final Object getWrapper() {
 		return wrapper;
 	}
@@ -37,7 +45,7 @@ public final class WValue {
 	}
 
 	public boolean isConflict() { 
-		return tvalue.getValue() != this.originValue;
+		return tvalue.getVersion() != this.originVersion;
 	}
 	
 	public boolean isModify() {
@@ -46,7 +54,7 @@ public final class WValue {
 	
 	public void commit() {
 		if(isModify()) {
-			tvalue.setValue(curValue);
+			tvalue.update(curValue);
 		}
 		tvalue.setLastAccessTime(Timer.currentTime());
 	}
@@ -54,7 +62,7 @@ public final class WValue {
 	@Override
 	public String toString() {
 		return isModify() ? 
-			String.format("WValue{tvalue=%s, wrapper=%s, origin=%s, cur=%s}", this.tvalue, this.wrapper, this.originValue, this.curValue) :
-			String.format("WValue{tvalue=%s, wrapper=%s, origin=%s}", this.tvalue, this.wrapper, this.originValue);
+			String.format("WValue{tvalue=%s, wrapper=%s, originVersion=%s, origin=%s, cur=%s}", this.tvalue, this.wrapper, this.originVersion, this.originValue, this.curValue) :
+			String.format("WValue{tvalue=%s, wrapper=%s, originVersion=%s, origin=%s}", this.tvalue, this.wrapper, this.originVersion, this.originValue);
 	}
 }
@@ -2,19 +2,32 @@ package fiber.handler.client;
 
 import java.util.Map;
 import java.util.HashMap;
+import fiber.io.Bean;
 import fiber.io.BeanHandler;
+import fiber.io.DispatchTable;
 
 public final class AllHandlers {
 	private final static Map<Integer, BeanHandler<?>> allhandlers = new HashMap<Integer, BeanHandler<?>>();
+	private final static DispatchTable table = new DispatchTable(7);
 	static {
-		allhandlers.put(2, new TestBeanHandler());
-		allhandlers.put(3, new TestTypeHandler());
-		allhandlers.put(4, new HelloHandler());
-		allhandlers.put(7, new SessionInfoHandler());
-		allhandlers.put(6, new UserLoginReHandler());
+		register(2, fiber.bean.TestBean.STUB, new TestBeanHandler());
+		register(3, fiber.bean.TestType.STUB, new TestTypeHandler());
+		register(4, fiber.bean.Hello.STUB, new HelloHandler());
+		register(7, fiber.bean.SessionInfo.STUB, new SessionInfoHandler());
+		register(6, fiber.bean.UserLoginRe.STUB, new UserLoginReHandler());
+	}
+
+	private static void register(int type, Bean<?> stub, BeanHandler<?> handler) {
+		allhandlers.put(type, handler);
+		table.put(type, stub, handler);
 	}
 
 	public static Map<Integer, BeanHandler<?>> get() {
 		return allhandlers;
 	}
+
+	// 按类型直接索引的分发表, 每个类型预先绑定了bean的stub与处理器
+	public static DispatchTable getTable() {
+		return table;
+	}
 }
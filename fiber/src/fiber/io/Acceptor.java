@@ -48,7 +48,7 @@ public final class Acceptor extends IOHandler {
 			socket.setSendBufferSize(conf.getSendBufferSize());
 			socket.setReceiveBufferSize(conf.getRecvBufferSize());
 			
-			IOTransportor handler = new IOTransportor(getManager(), this.getPoller(), client);
+			IOTransportor handler = new IOTransportor(getManager(), getManager().nextPoller(), client);
 			handler.onOpen();
 		} catch (IOException e) {
 			log.error("Acceptor. create new connection fail.", e);
@@ -6,14 +6,20 @@ import fiber.bean.AllBeans;
 import static fiber.io.Log.log;
 
 public final class BeanCodec extends ProtocolCodec {
-	private final Map<Integer, BeanHandler<?>> handlerStub;
+	private final DispatchTable table;
+	public BeanCodec(final DispatchTable table) {
+		this.table = table;
+	}
+	
+	/**
+	 * 每次都会构造分发表, 应该尽量使用BeanCodec(DispatchTable)共享同一个表.
+	 */
 	public BeanCodec(final Map<Integer, BeanHandler<?>> handlerStub) {	
-		this.handlerStub = handlerStub;
+		this(DispatchTable.create(AllBeans.get(), handlerStub));
 	}
 
 	@Override
 	public void decode(final IOSession session, OctetsStream is) {
-		final Map<Integer, Bean<?>> beanStub = AllBeans.get();
 		int step = 0;
 		int lastHead = 0;
 		//Log.fatal(is.toOctets().dump().toString());
@@ -25,13 +31,13 @@ public final class BeanCodec extends ProtocolCodec {
 				int size = is.unmarshalUInt();
 				
 				step = 1;
-				BeanHandler<?> handler = handlerStub.get(type);
-				if(handler == null) {
+				final DispatchTable.Entry entry = this.table.get(type);
+				if(entry == null || entry.getHandler() == null) {
 					log.error("[session-{}] unhandle type:{}", session.getId(), type);
 					session.close();
 					return;
 				}
-				Bean<?> bean = beanStub.get(type);
+				final Bean<?> bean = entry.getStub();
 				if(bean == null) {
 					log.error("[session-{}] unkown bean type:{}", session.getId(), type);
 					session.close();
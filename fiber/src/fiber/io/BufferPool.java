@@ -0,0 +1,173 @@
+package fiber.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static fiber.io.Log.log;
+
+/**
+ * 直接内存缓冲区池. 按2的幂分为若干大小级别, 每个级别有一个所有线程共享的缓存(arena),
+ * 每个线程还有一个小的本地缓存, 大部分allocate/release都只访问本地缓存.
+ * 超过最大级别的请求直接分配, 不回收.
+ * 缓冲区只在真正有数据读写时才借出, 用完立即归还, 空闲的连接不占用缓冲区.
+ */
+public final class BufferPool {
+	private static final BufferPool instance = new BufferPool(
+		Const.getProperty("buffer_pool_min_shift", 9, 6, 20),
+		Const.getProperty("buffer_pool_max_shift", 20, 6, 30),
+		Const.getProperty("buffer_pool_local_cache", 16, 0, 1024),
+		Const.getProperty("buffer_pool_arena_cache", 1024, 0, 1024 * 1024));
+	public static BufferPool getInstance() { return instance; }
+
+	private static final class Arena {
+		private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+		private final AtomicInteger size = new AtomicInteger();
+	}
+
+	private static final class LocalCache {
+		private final ByteBuffer[][] buffers;
+		private final int[] sizes;
+		LocalCache(int classNum, int cacheNum) {
+			this.buffers = new ByteBuffer[classNum][cacheNum];
+			this.sizes = new int[classNum];
+		}
+	}
+
+	private final int minShift;
+	private final int maxShift;
+	private final int localCacheNum;
+	private final int arenaCacheNum;
+	private final Arena[] arenas;
+	private final ThreadLocal<LocalCache> localCaches;
+
+	private final AtomicLong allocateNum = new AtomicLong();
+	private final AtomicLong releaseNum = new AtomicLong();
+	private final AtomicLong newNum = new AtomicLong();
+	private final AtomicLong newBytes = new AtomicLong();
+	private final AtomicLong arenaHitNum = new AtomicLong();
+	private final AtomicLong dropNum = new AtomicLong();
+
+	BufferPool(int minShift, int maxShift, int localCacheNum, int arenaCacheNum) {
+		if(minShift > maxShift) throw new IllegalArgumentException("minShift:" + minShift + " > maxShift:" + maxShift);
+		this.minShift = minShift;
+		this.maxShift = maxShift;
+		this.localCacheNum = localCacheNum;
+		this.arenaCacheNum = arenaCacheNum;
+		this.arenas = new Arena[maxShift - minShift + 1];
+		for(int i = 0 ; i < this.arenas.length ; i++) {
+			this.arenas[i] = new Arena();
+		}
+		final int classNum = this.arenas.length;
+		this.localCaches = new ThreadLocal<LocalCache>() {
+			@Override
+			protected LocalCache initialValue() {
+				return new LocalCache(classNum, BufferPool.this.localCacheNum);
+			}
+		};
+		log.info("BufferPool.init minSize:{} maxSize:{} localCache:{} arenaCache:{}", 1 << minShift, 1 << maxShift, localCacheNum, arenaCacheNum);
+	}
+
+	private int sizeClass(int size) {
+		int shift = size <= (1 << this.minShift) ? this.minShift : 32 - Integer.numberOfLeadingZeros(size - 1);
+		return shift - this.minShift;
+	}
+
+	/**
+	 * @return 容量不小于size, 已clear的直接缓冲区. 用完后应该调用release归还.
+	 */
+	public ByteBuffer allocate(int size) {
+		this.allocateNum.incrementAndGet();
+		final int index = sizeClass(size);
+		if(index >= this.arenas.length) {
+			return newBuffer(size);
+		}
+		final LocalCache cache = this.localCaches.get();
+		int n = cache.sizes[index];
+		if(n > 0) {
+			cache.sizes[index] = --n;
+			ByteBuffer b = cache.buffers[index][n];
+			cache.buffers[index][n] = null;
+			return b;
+		}
+		final Arena arena = this.arenas[index];
+		ByteBuffer b = arena.buffers.poll();
+		if(b != null) {
+			arena.size.decrementAndGet();
+			this.arenaHitNum.incrementAndGet();
+			return b;
+		}
+		return newBuffer(1 << (index + this.minShift));
+	}
+
+	private ByteBuffer newBuffer(int capacity) {
+		this.newNum.incrementAndGet();
+		this.newBytes.addAndGet(capacity);
+		return ByteBuffer.allocateDirect(capacity);
+	}
+
+	public void release(ByteBuffer b) {
+		this.releaseNum.incrementAndGet();
+		final int capacity = b.capacity();
+		final int index = sizeClass(capacity);
+		if(index >= this.arenas.length || capacity != 1 << (index + this.minShift) || !b.isDirect()) {
+			this.dropNum.incrementAndGet();
+			return;
+		}
+		b.clear();
+		final LocalCache cache = this.localCaches.get();
+		final int n = cache.sizes[index];
+		if(n < this.localCacheNum) {
+			cache.buffers[index][n] = b;
+			cache.sizes[index] = n + 1;
+			return;
+		}
+		final Arena arena = this.arenas[index];
+		if(arena.size.incrementAndGet() <= this.arenaCacheNum) {
+			arena.buffers.offer(b);
+		} else {
+			arena.size.decrementAndGet();
+			this.dropNum.incrementAndGet();
+		}
+	}
+
+	/////////////////////////////////////////////////////////
+	//  statistics
+	/////////////////////////////////////////////////////////
+	public long getAllocateNum() {
+		return this.allocateNum.get();
+	}
+
+	public long getReleaseNum() {
+		return this.releaseNum.get();
+	}
+
+	// 真正新分配直接内存的次数与字节数
+	public long getNewNum() {
+		return this.newNum.get();
+	}
+
+	public long getNewBytes() {
+		return this.newBytes.get();
+	}
+
+	public long getArenaHitNum() {
+		return this.arenaHitNum.get();
+	}
+
+	public long getDropNum() {
+		return this.dropNum.get();
+	}
+
+	// 已借出还未归还的缓冲区数
+	public long getLeasedNum() {
+		return getAllocateNum() - getReleaseNum();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("BufferPool{allocate=%d, release=%d, leased=%d, new=%d, newBytes=%d, arenaHit=%d, drop=%d}",
+			getAllocateNum(), getReleaseNum(), getLeasedNum(), getNewNum(), getNewBytes(), getArenaHitNum(), getDropNum());
+	}
+}
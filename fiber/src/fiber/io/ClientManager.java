@@ -65,6 +65,14 @@ public class ClientManager extends NetManager {
 		return this.sendRpc(this.onlysession, rpcbean);
 	}
 	
+	public final <A extends Bean<A>, R extends Bean<R>> RpcFuture<R> sendRpcAsync(final RpcBean<A, R> rpcbean) {
+		return this.sendRpcAsync(this.onlysession, rpcbean);
+	}
+	
+	public final <A extends Bean<A>, R extends Bean<R>> RpcFuture<R> sendRpcAsync(final RpcBean<A, R> rpcbean, int timeoutMillis) {
+		return this.sendRpcAsync(this.onlysession, rpcbean, timeoutMillis);
+	}
+	
 	public  final void writeMessage(Object msg) {
 		if(this.onlysession != null) {
 			this.onlysession.send(msg);
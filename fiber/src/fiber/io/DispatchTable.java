@@ -0,0 +1,104 @@
+package fiber.io;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 按bean类型直接索引的分发表. 每个类型预先绑定了bean的stub(用于create)与处理器,
+ * 解码与分发时只需一次数组访问, 不再查找装箱的Map<Integer, ...>.
+ * 类型超过dispatch_table_max_dense的少数bean放在稀疏表里.
+ * 由genrpc.lua生成的AllHandlers.getTable()构造, 也可以用create从已有的Map构造.
+ * 只在启动时put, 之后只读.
+ */
+public final class DispatchTable {
+	private final static int dispatch_table_max_dense = Const.getProperty("dispatch_table_max_dense", 65536, 0, 1 << 24);
+
+	public static final class Entry {
+		private final int type;
+		private final Bean<?> stub;
+		private final BeanHandler<?> handler;
+
+		Entry(int type, Bean<?> stub, BeanHandler<?> handler) {
+			this.type = type;
+			this.stub = stub;
+			this.handler = handler;
+		}
+
+		public int getType() {
+			return this.type;
+		}
+
+		// 可能为null, 表示没有该类型的bean
+		public Bean<?> getStub() {
+			return this.stub;
+		}
+
+		// 可能为null, 表示没有该类型的处理器
+		public BeanHandler<?> getHandler() {
+			return this.handler;
+		}
+	}
+
+	private Entry[] entries;
+	private final Map<Integer, Entry> sparse;
+
+	/**
+	 * @param maxType 预计的最大类型, 用于确定数组大小. put更大的类型时会自动扩大.
+	 */
+	public DispatchTable(int maxType) {
+		this.entries = new Entry[Math.min(Math.max(maxType, 0), dispatch_table_max_dense) + 1];
+		this.sparse = new HashMap<Integer, Entry>();
+	}
+
+	public void put(int type, Bean<?> stub, BeanHandler<?> handler) {
+		final Entry e = new Entry(type, stub, handler);
+		if(type >= 0 && type <= dispatch_table_max_dense) {
+			if(type >= this.entries.length) {
+				Entry[] newEntries = new Entry[type + 1];
+				System.arraycopy(this.entries, 0, newEntries, 0, this.entries.length);
+				this.entries = newEntries;
+			}
+			this.entries[type] = e;
+		} else {
+			this.sparse.put(type, e);
+		}
+	}
+
+	/**
+	 * @return 没有该类型时返回null
+	 */
+	public Entry get(int type) {
+		final Entry[] es = this.entries;
+		if(type >= 0 && type < es.length) return es[type];
+		return this.sparse.isEmpty() ? null : this.sparse.get(type);
+	}
+
+	public BeanHandler<?> getHandler(int type) {
+		final Entry e = get(type);
+		return e != null ? e.handler : null;
+	}
+
+	public Bean<?> getStub(int type) {
+		final Entry e = get(type);
+		return e != null ? e.stub : null;
+	}
+
+	/**
+	 * 从bean与处理器的Map构造. 两个Map里任意一个有的类型都会加入.
+	 */
+	public static DispatchTable create(Map<Integer, Bean<?>> beans, Map<Integer, BeanHandler<?>> handlers) {
+		final Set<Integer> types = new HashSet<Integer>(beans.keySet());
+		types.addAll(handlers.keySet());
+		int maxType = 0;
+		for(int type : types) {
+			if(type > maxType && type <= dispatch_table_max_dense) maxType = type;
+		}
+		final DispatchTable table = new DispatchTable(maxType);
+		for(int type : types) {
+			table.put(type, beans.get(type), handlers.get(type));
+		}
+		return table;
+	}
+}
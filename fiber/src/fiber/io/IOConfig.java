@@ -4,6 +4,18 @@ import java.net.InetSocketAddress;
 
 
 public final class IOConfig {
+	
+	// 发送队列超过高水位时的处理
+	public static enum SlowConsumerPolicy {
+		// 只通知IOManager.onWritabilityChanged
+		NONE,
+		// 从最旧的开始丢弃可丢弃的数据, 直到低于低水位
+		DROP_DROPPABLE,
+		// 相同key的可合并数据只保留最新的
+		COALESCE,
+		// 断开连接
+		DISCONNECT,
+	}
 
 	public IOConfig() {	}
 	public InetSocketAddress setAddr(String ip, short port) {
@@ -79,6 +91,110 @@ public final class IOConfig {
 		this.backlog = backlog;
 	}
 	
+	public final boolean isGatherWrite() {
+		return gatherWrite;
+	}
+	
+	public final void setGatherWrite(boolean gatherWrite) {
+		this.gatherWrite = gatherWrite;
+	}
+	
+	public final int getWriteSpinCount() {
+		return writeSpinCount;
+	}
+	
+	public final void setWriteSpinCount(int writeSpinCount) {
+		this.writeSpinCount = writeSpinCount;
+	}
+	
+	public final boolean isDirectBufferPool() {
+		return directBufferPool;
+	}
+	
+	public final void setDirectBufferPool(boolean directBufferPool) {
+		this.directBufferPool = directBufferPool;
+	}
+	
+	public final int getOutHighWatermark() {
+		return outHighWatermark;
+	}
+	
+	public final void setOutHighWatermark(int outHighWatermark) {
+		this.outHighWatermark = outHighWatermark;
+	}
+	
+	public final int getOutLowWatermark() {
+		return outLowWatermark;
+	}
+	
+	public final void setOutLowWatermark(int outLowWatermark) {
+		this.outLowWatermark = outLowWatermark;
+	}
+	
+	public final SlowConsumerPolicy getSlowConsumerPolicy() {
+		return slowConsumerPolicy;
+	}
+	
+	public final void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+		this.slowConsumerPolicy = slowConsumerPolicy;
+	}
+	
+	public final int getIdleTimeout() {
+		return idleTimeout;
+	}
+	
+	public final void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+	
+	public final boolean isInTaskQueue() {
+		return inTaskQueue;
+	}
+	
+	public final void setInTaskQueue(boolean inTaskQueue) {
+		this.inTaskQueue = inTaskQueue;
+	}
+	
+	public final int getInQueueHighNum() {
+		return inQueueHighNum;
+	}
+	
+	public final void setInQueueHighNum(int inQueueHighNum) {
+		this.inQueueHighNum = inQueueHighNum;
+	}
+	
+	public final int getInQueueLowNum() {
+		return inQueueLowNum;
+	}
+	
+	public final void setInQueueLowNum(int inQueueLowNum) {
+		this.inQueueLowNum = inQueueLowNum;
+	}
+	
+	public final int getInQueueHighCost() {
+		return inQueueHighCost;
+	}
+	
+	public final void setInQueueHighCost(int inQueueHighCost) {
+		this.inQueueHighCost = inQueueHighCost;
+	}
+	
+	public final int getInQueueLowCost() {
+		return inQueueLowCost;
+	}
+	
+	public final void setInQueueLowCost(int inQueueLowCost) {
+		this.inQueueLowCost = inQueueLowCost;
+	}
+	
+	public final int getMaxGatherNum() {
+		return maxGatherNum;
+	}
+	
+	public final void setMaxGatherNum(int maxGatherNum) {
+		this.maxGatherNum = maxGatherNum;
+	}
+	
 	public int getMaxInBufferSize() {
 		return maxInBufferSize;
 	}
@@ -114,6 +230,28 @@ public final class IOConfig {
 	// for transportor. 
 	private int inBufferSize = 4 * 1024;
 	private int outBufferSize = 4 * 1024;
+	// 为true时发送队列里的数据不再拷贝到outBufferSize的缓冲区, 而是以ByteBuffer视图直接writev.
+	private boolean gatherWrite = Const.getProperty("io_gather_write", 0) != 0;
+	// 每次可写事件最多尝试write的次数. 发送缓冲区满(没写完)时提前结束.
+	private int writeSpinCount = Const.getProperty("io_write_spin", 1, 1, 64);
+	// 为true时读写使用BufferPool里的直接缓冲区, 只在有数据读写时借出.
+	private boolean directBufferPool = Const.getProperty("io_direct_buffer_pool", 0) != 0;
+	// 每个连接发送队列的高低水位(字节)
+	private int outHighWatermark = Const.getProperty("io_out_high_watermark", 1024 * 1024, 1, Integer.MAX_VALUE);
+	private int outLowWatermark = Const.getProperty("io_out_low_watermark", 256 * 1024, 0, Integer.MAX_VALUE);
+	private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.values()[Const.getProperty("io_slow_consumer_policy", 0, 0, SlowConsumerPolicy.values().length - 1)];
+	// 为true时NetManager把每个连接的消息放入该连接自己的TaskQueue里处理, 并根据队列积压暂停/恢复读
+	private boolean inTaskQueue = Const.getProperty("io_in_task_queue", 0) != 0;
+	// 接收队列积压的任务数超过high时暂停读, 降到low以下(并且开销也降到低水位以下)时恢复
+	private int inQueueHighNum = Const.getProperty("io_in_queue_high", 256, 1, Integer.MAX_VALUE);
+	private int inQueueLowNum = Const.getProperty("io_in_queue_low", 64, 0, Integer.MAX_VALUE);
+	// 接收队列积压的估计开销的高低水位, 见NetManager.estimateCost. 0表示不按开销限制.
+	private int inQueueHighCost = Const.getProperty("io_in_cost_high", 0, 0, Integer.MAX_VALUE);
+	private int inQueueLowCost = Const.getProperty("io_in_cost_low", 0, 0, Integer.MAX_VALUE);
+	// 连接空闲(没有读到数据)超过此秒数时调用IOManager.onIdle. 0表示不检查.
+	private int idleTimeout = Const.getProperty("io_idle_timeout", 0, 0, Integer.MAX_VALUE);
+	// gather模式下一次writev最多的缓冲区数
+	private int maxGatherNum = Const.getProperty("io_max_gather_num", 64, 1, 1024);
 
 	
 	private int maxInBufferSize = 1024 * 1024;
@@ -2,12 +2,20 @@ package fiber.io;
 
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 abstract public class IOHandler {
 	private final IOPoller poller;
 	private final IOManager manager;
 	private final SelectableChannel channel;
 	private boolean isClosing;
+	
+	// 以下由IOPoller使用, 见IOPoller的命令栈
+	volatile int pendingOpers;
+	volatile boolean closeRequested;
+	volatile int commandQueued;
+	IOHandler nextCommand;
+	static final AtomicIntegerFieldUpdater<IOHandler> COMMAND_QUEUED = AtomicIntegerFieldUpdater.newUpdater(IOHandler.class, "commandQueued");
 
 	public IOHandler(IOManager manager, IOPoller thread, SelectableChannel channel) {
 		this.poller = thread;
@@ -41,7 +49,7 @@ abstract public class IOHandler {
 	}
 
 	protected final void close() {
-		this.poller.close(this.channel);
+		this.poller.close(this);
 	}
 	
 	protected abstract void onHandle(SelectionKey key);
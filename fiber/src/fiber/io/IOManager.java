@@ -7,24 +7,50 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fiber.common.TimingWheel;
 
 import static fiber.io.Log.log;
 
 public abstract class IOManager {
-	private final IOPoller poller;
+	private final IOPollerGroup pollerGroup;
 	private final IOConfig config;
 	private final Map<Integer, IOSession> sessionMap;
 	private final ProtocolCodec.Factory factory;
+	private final AtomicLong unwritableNum = new AtomicLong();
+	private final AtomicLong dropNum = new AtomicLong();
+	private final AtomicLong coalesceNum = new AtomicLong();
+	private final AtomicLong slowConsumerDisconnectNum = new AtomicLong();
 	
 	public IOManager(IOPoller e, ProtocolCodec.Factory factory) {
-		this.poller = e;
+		this(new IOPollerGroup(e), factory);
+	}
+	
+	public IOManager(IOPollerGroup group, ProtocolCodec.Factory factory) {
+		this.pollerGroup = group;
 		this.config = new IOConfig();
 		this.sessionMap = new ConcurrentHashMap<Integer, IOSession>();
 		this.factory = factory;
 	}
 	
+	/**
+	 * @return Acceptor与Connector所在的IOPoller
+	 */
 	public final IOPoller getPoller() {
-		return this.poller;
+		return this.pollerGroup.get(0);
+	}
+	
+	public final IOPollerGroup getPollerGroup() {
+		return this.pollerGroup;
+	}
+	
+	/**
+	 * @return 新接受的连接应该分配到的IOPoller
+	 */
+	public final IOPoller nextPoller() {
+		return this.pollerGroup.next();
 	}
 	
 	public final IOConfig getConfig() {
@@ -38,12 +64,20 @@ public abstract class IOManager {
 	protected void onAddSessionIntern(IOSession s) {
 		log.info("onAddSession:{}", s.getId());
 		this.sessionMap.put(s.getId(), s);
+		final int idleTimeout = this.config.getIdleTimeout();
+		if(idleTimeout > 0) {
+			new IdleChecker(s, idleTimeout).schedule(idleTimeout);
+		}
 		onAddSession(s);
 	}
 	
 	protected void onDelSessionIntern(IOSession s) {
 		log.info("onDelSession:{}", s.getId());
 		this.sessionMap.remove(s.getId());
+		final TimingWheel.Timeout idle = s.getIdleTimeout();
+		if(idle != null) {
+			idle.cancel();
+		}
 		onDelSession(s);
 	}
 	
@@ -53,6 +87,38 @@ public abstract class IOManager {
 		session.close();
 	}
 	
+	/**
+	 * 每个连接一个时间轮定时器, 在最后活跃时间+interval时触发. 触发时如果期间有过活动,
+	 * 则按剩余时间重新定时, 否则调用onIdle. 不需要定期扫描所有连接.
+	 */
+	private final class IdleChecker implements Runnable {
+		private final IOSession session;
+		private final int interval;
+		
+		IdleChecker(IOSession session, int interval) {
+			this.session = session;
+			this.interval = interval;
+		}
+		
+		void schedule(int delay) {
+			this.session.setIdleTimeout(TimingWheel.getInstance().schedule(this, delay, TimeUnit.SECONDS));
+		}
+		
+		@Override
+		public void run() {
+			if(!sessionMap.containsKey(this.session.getId())) return;
+			final int remain = this.session.getLastActiveTime() + this.interval - Timer.currentTime();
+			if(remain > 0) {
+				schedule(remain);
+			} else {
+				onIdle(this.session);
+			}
+		}
+	}
+	
+	/**
+	 * 扫描所有连接. 一般设置IOConfig.idleTimeout, 由时间轮检查.
+	 */
 	protected void checkIdle(final int interval) {
 		int minLastActiveTime = Timer.currentTime() - interval;
 		for(IOSession session : this.sessionMap.values()) {
@@ -62,6 +128,52 @@ public abstract class IOManager {
 		}
 	}
 	
+	final void onWritabilityChangedIntern(IOSession s, boolean writable) {
+		if(!writable) {
+			this.unwritableNum.incrementAndGet();
+		}
+		try {
+			onWritabilityChanged(s, writable);
+		} catch(Exception e) {
+			log.error("onWritabilityChanged. session:{} writable:{}", s.getId(), writable, e);
+		}
+	}
+	
+	final void onDrop(int num) {
+		this.dropNum.addAndGet(num);
+	}
+	
+	final void onCoalesce() {
+		this.coalesceNum.incrementAndGet();
+	}
+	
+	final void onSlowConsumerDisconnect() {
+		this.slowConsumerDisconnectNum.incrementAndGet();
+	}
+	
+	/**
+	 * 发送队列超过高水位时以writable=false调用, 降到低水位以下时以writable=true调用.
+	 * 可以据此降低对该连接的同步频率. 可能在任意写数据的线程或poller线程里调用.
+	 * 同一连接的通知是串行的, 连续两次的值一定不同, 最后一次总是当前的状态.
+	 */
+	protected void onWritabilityChanged(IOSession s, boolean writable) { }
+	
+	public final long getUnwritableNum() {
+		return this.unwritableNum.get();
+	}
+	
+	public final long getDropNum() {
+		return this.dropNum.get();
+	}
+	
+	public final long getCoalesceNum() {
+		return this.coalesceNum.get();
+	}
+	
+	public final long getSlowConsumerDisconnectNum() {
+		return this.slowConsumerDisconnectNum.get();
+	}
+	
 	protected void onAddSession(IOSession s) {	}
 	
 	protected void onDelSession(IOSession s) {	}
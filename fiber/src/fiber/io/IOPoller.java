@@ -3,35 +3,58 @@ package fiber.io;
 import java.io.IOException;
 
 import java.nio.channels.*;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static fiber.io.Log.log;
 
+/**
+ * 注册/关闭请求不再放进每轮新建的HashMap/HashSet里, 而是直接记录在IOHandler上(pendingOpers, closeRequested),
+ * 再把IOHandler挂到一个无锁栈(commands)上. IOHandler自己就是可复用的事件对象, 入栈不分配内存;
+ * 已在栈里的IOHandler再次注册只更新pendingOpers, 多次修改合并为一次.
+ * 在poller线程里修改已注册通道的interestOps时直接修改, 不经过栈, 也不需要wakeup.
+ */
 public final class IOPoller {
 	private final int id;
 	private final Selector selector;
-	private final Object eventLock;
-	
-	private static class Event {
-		public final int opers;
-		public final IOHandler handler;
-		public Event(int opers, IOHandler handler) {
-			this.opers = opers;
-			this.handler = handler;
-		}
-	}
-	private Map<SelectableChannel, Event> changedChannelMap;
-	private Set<SelectableChannel> removeChannelSet;
+	// 等待poller线程处理的IOHandler, 通过IOHandler.nextCommand链接.
+	private final AtomicReference<IOHandler> commands;
+	private volatile Thread pollerThread;
+	// 在poller线程里执行的任务, 见execute
+	private final ConcurrentLinkedQueue<Runnable> tasks;
+	private final AtomicInteger taskNum;
+	// 负载统计. channelNum为当前连接数, 其他只由poller线程更新.
+	private final AtomicInteger channelNum;
+	private final AtomicLong assignNum;
+	private final AtomicLong wakeupNum;
+	private volatile long pollNum;
+	private volatile long handleNum;
+	private volatile long selectNanos;
+	private volatile long commandNum;
+	private volatile long directNum;
+	private volatile long readNum;
+	private volatile long readBytes;
+	private volatile long writeNum;
+	private volatile long writeBytes;
+	private volatile long writeBufferNum;
+	private volatile long inplaceDecodeNum;
+	private volatile long stagedDecodeNum;
+	private volatile long shrinkNum;
+	// 解码直接缓冲区时使用的临时数组, 只在poller线程内使用
+	private byte[] scratch = new byte[0];
 	
 	public IOPoller(int id) throws IOException {
 		this.id = id;
 		this.selector = Selector.open();
-		this.eventLock = new Object();
-		this.changedChannelMap = new HashMap<SelectableChannel, Event>();
-		this.removeChannelSet = new HashSet<SelectableChannel>();
+		this.commands = new AtomicReference<IOHandler>();
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.taskNum = new AtomicInteger();
+		this.channelNum = new AtomicInteger();
+		this.assignNum = new AtomicLong();
+		this.wakeupNum = new AtomicLong();
 	}
 	
 	@Override
@@ -39,57 +62,121 @@ public final class IOPoller {
 		return "IOPoller-" + id;
 	}
 	
+	private boolean inPoller() {
+		return Thread.currentThread() == this.pollerThread;
+	}
+	
 	public void register(SelectableChannel channel, int opers, IOHandler handler) {
-		synchronized(this.eventLock) {
-			if(this.changedChannelMap.isEmpty() && this.removeChannelSet.isEmpty()) {
-				this.selector.wakeup();
-			}
-			if(!this.removeChannelSet.contains(channel)) {
-				this.changedChannelMap.put(channel, new Event(opers, handler));
+		handler.pendingOpers = opers;
+		if(inPoller() && !handler.closeRequested) {
+			SelectionKey key = channel.keyFor(this.selector);
+			// 同一通道可能换了处理器(比如Connector连接成功后交给IOTransportor), 此时要经过命令栈重新注册
+			if(key != null && key.isValid() && key.attachment() == handler) {
+				if(key.interestOps() != opers) {
+					key.interestOps(opers);
+				}
+				this.directNum++;
+				return;
 			}
-		}	
+		}
+		addCommand(handler);
 	}
 	
-	public void close(SelectableChannel channel) {
-		synchronized(this.eventLock) {
-			if(this.changedChannelMap.isEmpty() && this.removeChannelSet.isEmpty()) {
-				this.selector.wakeup();
+	public void close(IOHandler handler) {
+		handler.closeRequested = true;
+		addCommand(handler);
+	}
+	
+	private void addCommand(IOHandler handler) {
+		if(!IOHandler.COMMAND_QUEUED.compareAndSet(handler, 0, 1)) return;
+		IOHandler head;
+		do {
+			head = this.commands.get();
+			handler.nextCommand = head;
+		} while(!this.commands.compareAndSet(head, handler));
+		// 只有栈由空变为非空时才需要唤醒, 避免大量连接同时写时的wakeup风暴.
+		if(head == null && !inPoller()) {
+			this.wakeupNum.incrementAndGet();
+			this.selector.wakeup();
+		}
+	}
+	
+	/**
+	 * 在poller线程里执行task. 在poller线程里对本poller上的连接写数据, 修改写事件不需要wakeup.
+	 */
+	public void execute(Runnable task) {
+		this.tasks.offer(task);
+		if(this.taskNum.getAndIncrement() == 0 && !inPoller()) {
+			this.wakeupNum.incrementAndGet();
+			this.selector.wakeup();
+		}
+	}
+	
+	private void processTasks() {
+		Runnable task;
+		while((task = this.tasks.poll()) != null) {
+			this.taskNum.decrementAndGet();
+			try {
+				task.run();
+			} catch(Exception e) {
+				log.error("{} task:{}", this, task, e);
 			}
-			this.removeChannelSet.add(channel);
-			this.changedChannelMap.remove(channel);
-		}	
+		}
 	}
 	
-	public void poll(long timeout) throws IOException {
-		final Map<SelectableChannel, Event> new_event_map = this.changedChannelMap;
-		final Set<SelectableChannel> remove_channel_set = this.removeChannelSet;
-		synchronized (this.eventLock) {
-			this.changedChannelMap = new HashMap<SelectableChannel, Event>();
-			this.removeChannelSet = new HashSet<SelectableChannel>();
+	private void processCommands() {
+		IOHandler handler = this.commands.getAndSet(null);
+		while(handler != null) {
+			final IOHandler next = handler.nextCommand;
+			handler.nextCommand = null;
+			// 先清除标记再读取请求, 之后的修改会重新入栈, 不会丢失.
+			IOHandler.COMMAND_QUEUED.set(handler, 0);
+			this.commandNum++;
+			try {
+				processCommand(handler);
+			} catch(Exception e) {
+				log.error("{} processCommand. handler:{}", this, handler, e);
+			}
+			handler = next;
 		}
-
-		for (SelectableChannel channel : remove_channel_set) {
+	}
+	
+	private void processCommand(IOHandler handler) throws IOException {
+		final SelectableChannel channel = handler.getChannel();
+		if(handler.closeRequested) {
 			SelectionKey key = channel.keyFor(this.selector);
-			if (key != null) {
-				IOHandler handler = (IOHandler) key.attachment();
-				if (!handler.isClosing()) {
-					handler.setClosing(true);
-					handler.onClose();
-					channel.close();
-				}
+			if (key != null && !handler.isClosing()) {
+				handler.setClosing(true);
+				handler.onClose();
+				channel.close();
 			}
+			return;
 		}
-
-		for (Map.Entry<SelectableChannel, Event> entry : new_event_map.entrySet()) {
-			Event e = entry.getValue();
-			if (e.handler.isClosing()) continue;
-			SelectableChannel channel = entry.getKey();
-			channel.register(this.selector, e.opers, e.handler);
+		if (handler.isClosing()) return;
+		final int opers = handler.pendingOpers;
+		SelectionKey key = channel.keyFor(this.selector);
+		if(key == null || key.attachment() != handler) {
+			channel.register(this.selector, opers, handler);
+		} else if(key.isValid()) {
+			if(key.interestOps() != opers) {
+				key.interestOps(opers);
+			}
 		}
-
+	}
+	
+	public void poll(long timeout) throws IOException {
+		if(this.pollerThread == null) {
+			this.pollerThread = Thread.currentThread();
+		}
+		processTasks();
+		processCommands();
+	
+		final long t1 = System.nanoTime();
 		int ready_channel_num = this.selector.select(timeout);
-		log.debug("{} ready channel num:{}", this, ready_channel_num);
+		this.selectNanos += System.nanoTime() - t1;
+		this.pollNum++;
 		if(ready_channel_num == 0) return;
+		this.handleNum += ready_channel_num;
 		final Set<SelectionKey> keys = this.selector.selectedKeys();
 		for (SelectionKey key : keys) {
 			IOHandler handler = (IOHandler) key.attachment();
@@ -98,6 +185,119 @@ public final class IOPoller {
 		keys.clear();
 	}
 	
+	final void onAssign() {
+		this.assignNum.incrementAndGet();
+	}
+	
+	final void onOpenChannel() {
+		this.channelNum.incrementAndGet();
+	}
+	
+	final void onCloseChannel() {
+		this.channelNum.decrementAndGet();
+	}
+	
+	// 以下只在poller线程里调用
+	final void onRead(int bytes) {
+		this.readNum++;
+		this.readBytes += bytes;
+	}
+	
+	final void onWrite(long bytes, int bufferNum) {
+		this.writeNum++;
+		this.writeBytes += bytes;
+		this.writeBufferNum += bufferNum;
+	}
+	
+	final void onDecode(boolean staged) {
+		if(staged) {
+			this.stagedDecodeNum++;
+		} else {
+			this.inplaceDecodeNum++;
+		}
+	}
+	
+	final void onShrink() {
+		this.shrinkNum++;
+	}
+	
+	final byte[] getScratch(int size) {
+		if(this.scratch.length < size) {
+			this.scratch = new byte[size];
+		}
+		return this.scratch;
+	}
+	
+	public int getChannelNum() {
+		return this.channelNum.get();
+	}
+	
+	public long getAssignNum() {
+		return this.assignNum.get();
+	}
+	
+	public long getPollNum() {
+		return this.pollNum;
+	}
+	
+	public long getHandleNum() {
+		return this.handleNum;
+	}
+	
+	public long getWakeupNum() {
+		return this.wakeupNum.get();
+	}
+	
+	public long getSelectNanos() {
+		return this.selectNanos;
+	}
+	
+	// 经过命令栈处理的注册/关闭次数
+	public long getCommandNum() {
+		return this.commandNum;
+	}
+	
+	// 在poller线程里直接修改interestOps的次数. 只由poller线程更新.
+	public long getDirectNum() {
+		return this.directNum;
+	}
+	
+	public long getReadNum() {
+		return this.readNum;
+	}
+	
+	public long getReadBytes() {
+		return this.readBytes;
+	}
+	
+	// write/writev系统调用次数
+	public long getWriteNum() {
+		return this.writeNum;
+	}
+	
+	public long getWriteBytes() {
+		return this.writeBytes;
+	}
+	
+	// 所有write调用的缓冲区总数, 除以writeNum为平均每次writev的缓冲区数
+	public long getWriteBufferNum() {
+		return this.writeBufferNum;
+	}
+	
+	// 直接在读到的数据上解码的次数
+	public long getInplaceDecodeNum() {
+		return this.inplaceDecodeNum;
+	}
+	
+	// 有暂存的不完整帧, 需要先追加到暂存区再解码的次数
+	public long getStagedDecodeNum() {
+		return this.stagedDecodeNum;
+	}
+	
+	public long getShrinkNum() {
+		return this.shrinkNum;
+	}
+	
 	public void runBackground() {
 		Thread t = new Thread(new Runnable() {
 			@Override
@@ -110,9 +310,9 @@ public final class IOPoller {
 					log.error("IOPoller.runBackground. exception.", e);
 				}
 			}
-		});
+		}, toString());
 		t.setDaemon(true);
 		t.start();
 	}
-
+	
 }
@@ -0,0 +1,105 @@
+package fiber.io;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一组IOPoller, 每个IOPoller一个线程.
+ * Acceptor接受的新连接按策略分配到某个IOPoller上, 之后该连接的所有读写都在这个IOPoller线程里完成.
+ * 注意: 使用多个IOPoller时, 消息处理(NetManager.onReceiveMessage)会在多个线程里并发执行.
+ */
+public final class IOPollerGroup {
+	public static enum Policy {
+		ROUND_ROBIN,
+		// 选择当前连接数最少的
+		LEAST_LOADED,
+	}
+	
+	private final IOPoller[] pollers;
+	private final Policy policy;
+	private final AtomicInteger nextIndex;
+	
+	public IOPollerGroup(int num, Policy policy) throws IOException {
+		if(num <= 0) throw new IllegalArgumentException("Illegal poller num:" + num);
+		this.pollers = new IOPoller[num];
+		for(int i = 0 ; i < num ; i++) {
+			this.pollers[i] = new IOPoller(i + 1);
+		}
+		this.policy = policy;
+		this.nextIndex = new AtomicInteger();
+	}
+	
+	public IOPollerGroup(IOPoller poller) {
+		this.pollers = new IOPoller[] { poller };
+		this.policy = Policy.ROUND_ROBIN;
+		this.nextIndex = new AtomicInteger();
+	}
+	
+	public int size() {
+		return this.pollers.length;
+	}
+	
+	public IOPoller get(int index) {
+		return this.pollers[index];
+	}
+	
+	/**
+	 * @return 新连接应该分配到的IOPoller
+	 */
+	public IOPoller next() {
+		final IOPoller[] ps = this.pollers;
+		if(ps.length == 1) {
+			ps[0].onAssign();
+			return ps[0];
+		}
+		if(this.policy == Policy.LEAST_LOADED) {
+			IOPoller best = ps[0];
+			int bestNum = best.getChannelNum();
+			for(int i = 1 ; i < ps.length ; i++) {
+				int num = ps[i].getChannelNum();
+				if(num < bestNum) {
+					best = ps[i];
+					bestNum = num;
+				}
+			}
+			best.onAssign();
+			return best;
+		}
+		IOPoller p = ps[(this.nextIndex.getAndIncrement() & Integer.MAX_VALUE) % ps.length];
+		p.onAssign();
+		return p;
+	}
+	
+	/**
+	 * 从第from个IOPoller开始, 每个IOPoller启动一个后台线程.
+	 * 比如由主线程自己驱动第0个IOPoller时, 调用runBackground(1).
+	 */
+	public void runBackground(int from) {
+		for(int i = from ; i < this.pollers.length ; i++) {
+			this.pollers[i].runBackground();
+		}
+	}
+	
+	public void runBackground() {
+		runBackground(0);
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("IOPollerGroup{policy=").append(this.policy);
+		for(IOPoller p : this.pollers) {
+			sb.append(", ").append(p).append("{channel=").append(p.getChannelNum())
+				.append(", assign=").append(p.getAssignNum())
+				.append(", poll=").append(p.getPollNum())
+				.append(", handle=").append(p.getHandleNum())
+				.append(", wakeup=").append(p.getWakeupNum())
+				.append(", command=").append(p.getCommandNum())
+				.append(", direct=").append(p.getDirectNum())
+				.append(", read=").append(p.getReadNum()).append('/').append(p.getReadBytes())
+				.append(", decode=").append(p.getInplaceDecodeNum()).append('/').append(p.getStagedDecodeNum())
+				.append(", write=").append(p.getWriteNum()).append('/').append(p.getWriteBytes()).append('/').append(p.getWriteBufferNum())
+				.append(", select=").append(p.getSelectNanos() / 1000000).append("ms}");
+		}
+		return sb.append('}').toString();
+	}
+}
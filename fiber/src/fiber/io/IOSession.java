@@ -1,11 +1,23 @@
 package fiber.io;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import fiber.common.TaskQueue;
+import fiber.common.TimingWheel;
+
 import static fiber.io.Log.log;
 
 public final class IOSession {
@@ -13,9 +25,18 @@ public final class IOSession {
 		this.handler = handler;
 		this.id = idGen.incrementAndGet();
 		IOConfig config = handler.getManager().getConfig();
-		this.inputBuffer = OctetsStream.create(config.getInBufferSize());
-		this.outputBuffer = OctetsStream.create(config.getOutBufferSize());
-		this.datas = new LinkedList<Octets>();
+		// 使用直接缓冲区池时, 暂存区按需增长, 空闲连接不预先占用内存.
+		this.inBufferSize = config.getInBufferSize();
+		this.directBufferPool = config.isDirectBufferPool();
+		this.inputBuffer = OctetsStream.create(this.directBufferPool ? 0 : this.inBufferSize);
+		this.outputBuffer = OctetsStream.create(config.isGatherWrite() || config.isDirectBufferPool() ? 0 : config.getOutBufferSize());
+		this.gatherBuffers = config.isGatherWrite() ? new ByteBuffer[config.getMaxGatherNum()] : null;
+		this.datas = new LinkedList<Object>();
+		this.highWatermark = config.getOutHighWatermark();
+		this.lowWatermark = config.getOutLowWatermark();
+		this.slowConsumerPolicy = config.getSlowConsumerPolicy();
+		this.coalesceMap = this.slowConsumerPolicy == IOConfig.SlowConsumerPolicy.COALESCE ? new HashMap<Object, Frame>() : null;
+		this.writable = true;
 		this.coder = handler.getManager().getFactory().createCodec();
 		this.lastActiveTime = Timer.currentTime();
 	}
@@ -30,43 +51,243 @@ public final class IOSession {
 	}
 	
 	public void onClose() {
-		
+		this.closed = true;
+		for(MulticastGroup group : this.groups) {
+			group.leave(this);
+		}
+		for(RpcBean<?, ?> rpcbean : this.rpcs.values()) {
+			expireRpc(rpcbean);
+		}
+	}
+	
+	/**
+	 * 连接已关闭, 等待回复的RPC不必等到超时, 立即(异步)按超时处理.
+	 * 仍由超时任务从表里移除, 与同时到达的回复竞争, 保证只完成一次.
+	 */
+	private static void expireRpc(RpcBean<?, ?> rpcbean) {
+		final TimingWheel.Timeout timeout = rpcbean.getTimeoutTask();
+		if(timeout != null && timeout.cancel()) {
+			TimingWheel.getInstance().schedule(timeout.getTask(), 0, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	final void addRpc(RpcBean<?, ?> rpcbean) {
+		this.rpcs.put(rpcbean.getRpcId(), rpcbean);
+	}
+	
+	/**
+	 * 在addRpc并设置超时任务之后调用. 与onClose配对, 保证关闭后加入的RPC也能立即超时.
+	 */
+	final void checkRpcClosed(RpcBean<?, ?> rpcbean) {
+		if(this.closed) {
+			expireRpc(rpcbean);
+		}
+	}
+	
+	final RpcBean<?, ?> removeRpc(int rpcid) {
+		return this.rpcs.remove(rpcid);
+	}
+	
+	final boolean removeRpc(int rpcid, RpcBean<?, ?> rpcbean) {
+		return this.rpcs.remove(rpcid, rpcbean);
+	}
+	
+	/**
+	 * @return 在该连接上等待回复的RPC数
+	 */
+	public int getPendingRpcNum() {
+		return this.rpcs.size();
+	}
+	
+	final void onJoin(MulticastGroup group) {
+		this.groups.add(group);
+		// 与onClose配对, 保证关闭后加入的组也能离开
+		if(this.closed) {
+			group.leave(this);
+		}
+	}
+	
+	final void onLeave(MulticastGroup group) {
+		this.groups.remove(group);
 	}
 	
 	public IOTransportor getHandler() {
 		return handler;
 	}
 	
+	/**
+	 * 暂存区(inputBuffer)为空时, 直接在本次读到的数据上解码, 只把末尾不完整的帧暂存起来;
+	 * 否则先追加到暂存区再解码.
+	 * 直接缓冲区先拷贝到poller的临时数组里再解码, 临时数组在poller线程内复用.
+	 */
 	public void onRead(ByteBuffer inBuffer) {
 		inBuffer.flip();
 
-		OctetsStream is = OctetsStream.wrap(inBuffer.array(), inBuffer.arrayOffset() + inBuffer.position(), inBuffer.remaining());
+		OctetsStream is;
+		if(inBuffer.hasArray()) {
+			is = OctetsStream.wrap(inBuffer.array(), inBuffer.arrayOffset() + inBuffer.position(), inBuffer.remaining());
+		} else {
+			final int size = inBuffer.remaining();
+			final byte[] scratch = this.handler.getPoller().getScratch(size);
+			inBuffer.get(scratch, 0, size);
+			is = OctetsStream.wrap(scratch, 0, size);
+		}
+		inBuffer.clear();
 		if(this.inFilter != null) {
 			is = this.inFilter.update(is);
 		}
-		this.inputBuffer.append(is);
-		inBuffer.clear();
-		this.coder.decode(this, this.inputBuffer);
+		final IOPoller poller = this.handler.getPoller();
+		if(this.inputBuffer.empty()) {
+			poller.onDecode(false);
+			this.coder.decode(this, is);
+			if(!is.empty()) {
+				this.inputBuffer.clear();
+				this.inputBuffer.append(is);
+			}
+		} else {
+			poller.onDecode(true);
+			this.inputBuffer.append(is);
+			this.coder.decode(this, this.inputBuffer);
+		}
+		shrinkInputBuffer(poller);
+	}
+	
+	/**
+	 * 偶尔收到超大消息后, 暂存区不再一直保持扩大后的容量.
+	 */
+	private void shrinkInputBuffer(IOPoller poller) {
+		final int size = this.inputBuffer.size();
+		if(this.inputBuffer.capacity() > this.inBufferSize && size <= this.inBufferSize) {
+			this.inputBuffer.shrink(this.directBufferPool ? size : this.inBufferSize);
+			poller.onShrink();
+		}
 	}
 	
+	/**
+	 * 把待发送数据放入outBuffer. 数据直接放入outBuffer, 只有放不下的那部分才暂存到outputBuffer,
+	 * 其他数据留在发送队列里, 等下次可写时再取.
+	 */
 	public void onWrite(ByteBuffer outBuffer) {
 		outBuffer.compact();
 		synchronized(this.datas) { 
-			if(!this.datas.isEmpty()) {
+			this.outputBuffer.putTo(outBuffer);
+			if(this.outputBuffer.empty()) {
+				this.outputBuffer.clear();
 				Octets data;
-				if(this.outFilter != null) {
-					while((data = this.datas.poll()) != null) {
-						this.outputBuffer.append(this.outFilter.update(data));
+				while(outBuffer.hasRemaining() && (data = pollData()) != null) {
+					if(this.outFilter != null) {
+						OctetsStream os = this.outFilter.update(data);
+						put(outBuffer, os.getData(), os.getHead(), os.size());
+					} else {
+						put(outBuffer, data.array(), 0, data.size());
 					}
-				} else {
-					while((data = this.datas.poll()) != null) {
-						this.outputBuffer.append(data);
-					}				
+				}
+				// 与inputBuffer一样, 使用直接内存池时暂存区清空后不再保留容量
+				if(this.directBufferPool && this.outputBuffer.empty()) {
+					this.outputBuffer.shrink(0);
 				}
 			}
-			this.outputBuffer.putTo(outBuffer);
 		}
 		outBuffer.flip();
+		checkWritable();
+	}
+	
+	private void put(ByteBuffer outBuffer, byte[] data, int head, int size) {
+		int putSize = Math.min(outBuffer.remaining(), size);
+		outBuffer.put(data, head, putSize);
+		if(putSize < size) {
+			this.outputBuffer.append(data, head + putSize, size - putSize);
+		}
+	}
+	
+	/**
+	 * gather模式的写. 只在poller线程里调用.
+	 * 发送队列里的Octets只包装成ByteBuffer视图, 不拷贝数据, 用一次writev发送.
+	 * @return 已取出的数据是否全部写完
+	 */
+	boolean onGatherWrite(GatheringByteChannel channel, int spin, IOPoller poller) throws IOException {
+		final ByteBuffer[] buffers = this.gatherBuffers;
+		for(int i = 0 ; i < spin ; i++) {
+			fillGather();
+			final int num = this.gatherNum;
+			if(num == 0) break;
+			long writeByte = channel.write(buffers, 0, num);
+			poller.onWrite(writeByte, num);
+			int done = 0;
+			while(done < num && !buffers[done].hasRemaining()) {
+				done++;
+			}
+			if(done > 0) {
+				System.arraycopy(buffers, done, buffers, 0, num - done);
+				Arrays.fill(buffers, num - done, num, null);
+				this.gatherNum = num - done;
+			}
+			// 发送缓冲区已满
+			if(this.gatherNum > 0) break;
+		}
+		return this.gatherNum == 0;
+	}
+	
+	private void fillGather() {
+		final ByteBuffer[] buffers = this.gatherBuffers;
+		synchronized(this.datas) {
+			Octets data;
+			while(this.gatherNum < buffers.length && (data = pollData()) != null) {
+				if(this.outFilter != null) {
+					// 过滤器(加密,压缩)一般复用输出缓冲, 而这里的数据要留到writev写完, 必须拷贝
+					final Octets filtered = this.outFilter.update(data).toOctets();
+					buffers[this.gatherNum++] = ByteBuffer.wrap(filtered.array(), 0, filtered.size());
+				} else {
+					buffers[this.gatherNum++] = ByteBuffer.wrap(data.array(), 0, data.size());
+				}
+			}
+		}
+		checkWritable();
+	}
+	
+	/**
+	 * 只能在synchronized(this.datas)里调用.
+	 */
+	private Octets pollData() {
+		Object o = this.datas.poll();
+		if(o == null) return null;
+		Octets data;
+		if(o instanceof Frame) {
+			Frame frame = (Frame)o;
+			data = frame.data;
+			if(frame.key != null && this.coalesceMap != null && this.coalesceMap.get(frame.key) == frame) {
+				this.coalesceMap.remove(frame.key);
+			}
+		} else {
+			data = (Octets)o;
+		}
+		this.outBytes -= data.size();
+		if(!this.writable && this.outBytes <= this.lowWatermark) {
+			this.writable = true;
+			this.writableChanged = true;
+		}
+		return data;
+	}
+	
+	// 在poller线程里, 释放datas的锁后调用
+	private void checkWritable() {
+		if(this.writableChanged) {
+			this.writableChanged = false;
+			notifyWritability();
+		}
+	}
+	
+	/**
+	 * 生产者线程(变为不可写)与poller线程(恢复可写)释放datas的锁后各自通知, 到达顺序可能与变化顺序相反.
+	 * 故通知时重新读取当前状态, 与上次通知的状态相同时不再通知, 应用最后收到的总是最新的状态.
+	 */
+	private void notifyWritability() {
+		synchronized(this.writableNotifyLock) {
+			final boolean writable = this.writable;
+			if(writable == this.notifiedWritable) return;
+			this.notifiedWritable = writable;
+			this.handler.getManager().onWritabilityChangedIntern(this, writable);
+		}
 	}
 	
 	// 在IOTransportor.write完成后调用.
@@ -87,11 +308,91 @@ public final class IOSession {
 	}
 	
 	public void write(Octets o) {
+		enqueue(o, o);
+	}
+	
+	/**
+	 * @param droppable 为true时, 发送队列超过高水位并且策略为DROP_DROPPABLE时可以被丢弃.
+	 *  适合可以丢失的广播, 状态同步等.
+	 */
+	public void write(Octets o, boolean droppable) {
+		enqueue(o, droppable ? new Frame(o, null) : o);
+	}
+	
+	/**
+	 * 可合并的数据. 策略为COALESCE并且不可写时, 新数据替换发送队列里相同key的旧数据.
+	 * 可合并的数据也可以被丢弃.
+	 */
+	public void write(Octets o, Object coalesceKey) {
+		enqueue(o, new Frame(o, coalesceKey));
+	}
+	
+	private void enqueue(Octets o, Object item) {
+		final int size = o.size();
+		boolean unwritable = false;
+		boolean disconnect = false;
 		synchronized(this.datas) {
+			// 已因发送过慢而断开, 之后的数据直接丢弃
+			if(!this.writable && this.slowConsumerPolicy == IOConfig.SlowConsumerPolicy.DISCONNECT) return;
+			if(this.coalesceMap != null && item instanceof Frame) {
+				final Frame frame = (Frame)item;
+				if(frame.key != null) {
+					if(!this.writable) {
+						Frame old = this.coalesceMap.get(frame.key);
+						if(old != null) {
+							this.outBytes += size - old.data.size();
+							old.data = o;
+							this.handler.getManager().onCoalesce();
+							return;
+						}
+					}
+					this.coalesceMap.put(frame.key, frame);
+				}
+			}
 			if(!this.remainOutputData()) {
 				this.handler.permitWrite();
 			}
-			this.datas.add(o);
+			this.datas.add(item);
+			this.outBytes += size;
+			if(this.outBytes > this.highWatermark) {
+				if(this.slowConsumerPolicy == IOConfig.SlowConsumerPolicy.DROP_DROPPABLE) {
+					dropDroppable();
+				}
+				if(this.writable && this.outBytes > this.highWatermark) {
+					this.writable = false;
+					unwritable = true;
+					disconnect = this.slowConsumerPolicy == IOConfig.SlowConsumerPolicy.DISCONNECT;
+				}
+			}
+		}
+		if(disconnect) {
+			log.warn("[session-{}] slow consumer. outBytes:{} exceed highWatermark:{}. disconnect.", this.getId(), this.outBytes, this.highWatermark);
+			this.handler.getManager().onSlowConsumerDisconnect();
+			close();
+		} else if(unwritable) {
+			notifyWritability();
+		}
+	}
+	
+	/**
+	 * 从最旧的开始丢弃可丢弃的数据, 直到低于低水位. 只能在synchronized(this.datas)里调用.
+	 */
+	private void dropDroppable() {
+		int dropNum = 0;
+		for(Iterator<Object> it = this.datas.iterator() ; it.hasNext() && this.outBytes > this.lowWatermark ; ) {
+			Object o = it.next();
+			if(o instanceof Frame) {
+				Frame frame = (Frame)o;
+				it.remove();
+				this.outBytes -= frame.data.size();
+				if(frame.key != null && this.coalesceMap != null && this.coalesceMap.get(frame.key) == frame) {
+					this.coalesceMap.remove(frame.key);
+				}
+				dropNum++;
+			}
+		}
+		if(dropNum > 0) {
+			this.handler.getManager().onDrop(dropNum);
 		}
 	}
 	
@@ -104,8 +405,30 @@ public final class IOSession {
 		write(this.coder.encode(this, msg));
 	}
 	
+	public void send(Object msg, boolean droppable) {
+		write(this.coder.encode(this, msg), droppable);
+	}
+	
+	public void send(Object msg, Object coalesceKey) {
+		write(this.coder.encode(this, msg), coalesceKey);
+	}
+	
+	/**
+	 * @return 发送队列是否低于高水位. 超过高水位后变为false, 直到降到低水位以下.
+	 */
+	public boolean isWritable() {
+		return this.writable;
+	}
+	
+	/**
+	 * @return 发送队列里还未取出的字节数
+	 */
+	public int getOutBytes() {
+		return this.outBytes;
+	}
+	
 	protected boolean remainOutputData() {
-		return !this.datas.isEmpty() || !this.outputBuffer.empty();
+		return !this.datas.isEmpty() || !this.outputBuffer.empty() || this.gatherNum > 0;
 	}
 	
 	public final void setInFilter(IOFilter inFilter) {
@@ -116,6 +439,25 @@ public final class IOSession {
 		this.outFilter = outFilter;
 	}
 
+	/**
+	 * @return 处理该连接消息的有序队列. 没有开启IOConfig.inTaskQueue时为null.
+	 */
+	public final TaskQueue getTaskQueue() {
+		return taskQueue;
+	}
+	
+	final void setTaskQueue(TaskQueue taskQueue) {
+		this.taskQueue = taskQueue;
+	}
+	
+	final TimingWheel.Timeout getIdleTimeout() {
+		return idleTimeout;
+	}
+	
+	final void setIdleTimeout(TimingWheel.Timeout idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+	
 	public final int getLastActiveTime() {
 		return lastActiveTime;
 	}
@@ -127,12 +469,42 @@ public final class IOSession {
 	private final int id;
 	private final IOTransportor handler;
 	private final OctetsStream inputBuffer;
+	private final int inBufferSize;
+	private final boolean directBufferPool;
 	private final OctetsStream outputBuffer;
 	private IOFilter inFilter;
 	private IOFilter outFilter;
 	private final ProtocolCodec coder;
 	
-	private final Queue<Octets> datas;
+	// 元素为Octets, 或者可丢弃/可合并的Frame
+	private final Queue<Object> datas;
+	private static final class Frame {
+		private Octets data;
+		private final Object key;
+		Frame(Octets data, Object key) {
+			this.data = data;
+			this.key = key;
+		}
+	}
+	private final int highWatermark;
+	private final int lowWatermark;
+	private final IOConfig.SlowConsumerPolicy slowConsumerPolicy;
+	private final HashMap<Object, Frame> coalesceMap;
+	private volatile int outBytes;
+	private volatile boolean writable;
+	private boolean writableChanged;
+	// 最后一次通知给应用的状态, 只在writableNotifyLock里访问, 见notifyWritability
+	private boolean notifiedWritable = true;
+	private final Object writableNotifyLock = new Object();
+	private final Set<MulticastGroup> groups = Collections.newSetFromMap(new ConcurrentHashMap<MulticastGroup, Boolean>());
+	private volatile boolean closed;
+	// gather模式下已从datas取出, 但还没有写完的数据. 只由poller线程修改.
+	private final ByteBuffer[] gatherBuffers;
+	private volatile int gatherNum;
 	private int lastActiveTime;
+	private volatile TaskQueue taskQueue;
+	private volatile TimingWheel.Timeout idleTimeout;
+	// 在该连接上等待回复的RPC, 连接关闭时随之清理
+	private final ConcurrentHashMap<Integer, RpcBean<?, ?>> rpcs = new ConcurrentHashMap<Integer, RpcBean<?, ?>>(4);
 	private static final AtomicInteger idGen = new AtomicInteger(0);
 }
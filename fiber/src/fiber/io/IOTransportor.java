@@ -12,8 +12,15 @@ import static fiber.io.Log.log;
 public final class IOTransportor extends IOHandler {
 	private final Object operLock;
 	private int opers;
+	// directBufferPool模式下为null, 读写时才从BufferPool借出.
+	// outputBuffer在数据没写完时保留, 写完立即归还.
 	private final ByteBuffer inputBuffer;
-	private final ByteBuffer outputBuffer;
+	private ByteBuffer outputBuffer;
+	private final boolean directBufferPool;
+	private final int inBufferSize;
+	private final int outBufferSize;
+	private final boolean gatherWrite;
+	private final int writeSpinCount;
 	private IOSession session;
 	
 	public IOTransportor(IOManager manager, IOPoller thread,
@@ -23,9 +30,19 @@ public final class IOTransportor extends IOHandler {
 		this.opers = 0;
 		
 		IOConfig config = manager.getConfig();
-		this.inputBuffer = ByteBuffer.allocate(config.getInBufferSize());
-		this.outputBuffer = ByteBuffer.allocate(config.getOutBufferSize());
-		this.outputBuffer.flip();
+		this.directBufferPool = config.isDirectBufferPool();
+		this.inBufferSize = config.getInBufferSize();
+		this.outBufferSize = config.getOutBufferSize();
+		this.gatherWrite = config.isGatherWrite();
+		this.writeSpinCount = config.getWriteSpinCount();
+		if(this.directBufferPool) {
+			this.inputBuffer = null;
+			this.outputBuffer = null;
+		} else {
+			this.inputBuffer = ByteBuffer.allocate(this.inBufferSize);
+			this.outputBuffer = ByteBuffer.allocate(this.gatherWrite ? 0 : this.outBufferSize);
+			this.outputBuffer.flip();
+		}
 	}
 	
 	public void permitRead() {
@@ -70,8 +87,7 @@ public final class IOTransportor extends IOHandler {
 	
 	/*
 	 * mina 里为了优化read&write性能,只要缓冲区没满或空,会多次尝试read 与 write
-	 * 我就暂时不优化了.感觉必要性不大.因为io性能已经足够用了.目前瓶颈都在逻辑处理上.
-	 *	private final static int WRITE_SPIN_COUNT = 3;
+	 * 写已经支持多次尝试, 见IOConfig.writeSpinCount. 读暂时不优化.
 	 *	private final static int READ_SPIN_COUNT = 3;
 	*/
 	@Override
@@ -79,24 +95,17 @@ public final class IOTransportor extends IOHandler {
 		SocketChannel channel = (SocketChannel)getChannel();
 		try {
 			if(key.isReadable()) {		
-				int readByte = channel.read(this.inputBuffer);
-				if(readByte < 0) {
-					close();
+				if(!read(channel)) {
 					return;
 				}
-				log.debug("[session-{}] read data byte:{}", this.session.getId(), readByte);
-				this.session.onRead(this.inputBuffer);
 			}
 			if(key.isWritable()) {
-				this.session.onWrite(this.outputBuffer);
-				int writeByte = channel.write(this.outputBuffer);
-				if(writeByte < 0) {
-					close();
+				if(this.gatherWrite) {
+					if(this.session.onGatherWrite(channel, this.writeSpinCount, getPoller())) {
+						this.session.checkForbidWrite();
+					}
+				} else if(!write(channel)) {
 					return;
-				}	
-				log.debug("[session-{}] write data byte:{}", this.session.getId(), writeByte);
-				if(this.outputBuffer.remaining() == 0) {
-					this.session.checkForbidWrite();
 				}
 			}
 			this.session.setLastActiveTime(Timer.currentTime());
@@ -105,8 +114,60 @@ public final class IOTransportor extends IOHandler {
 		}
 	}
 
+	private boolean read(SocketChannel channel) throws IOException {
+		final ByteBuffer buffer = this.directBufferPool ? BufferPool.getInstance().allocate(this.inBufferSize) : this.inputBuffer;
+		try {
+			int readByte = channel.read(buffer);
+			if(readByte < 0) {
+				close();
+				return false;
+			}
+			getPoller().onRead(readByte);
+			log.debug("[session-{}] read data byte:{}", this.session.getId(), readByte);
+			this.session.onRead(buffer);
+			return true;
+		} finally {
+			if(this.directBufferPool) {
+				BufferPool.getInstance().release(buffer);
+			}
+		}
+	}
+	
+	private boolean write(SocketChannel channel) throws IOException {
+		if(this.outputBuffer == null) {
+			this.outputBuffer = BufferPool.getInstance().allocate(this.outBufferSize);
+			this.outputBuffer.flip();
+		}
+		for(int i = 0 ; i < this.writeSpinCount ; i++) {
+			this.session.onWrite(this.outputBuffer);
+			if(this.outputBuffer.remaining() == 0) break;
+			int writeByte = channel.write(this.outputBuffer);
+			if(writeByte < 0) {
+				close();
+				return false;
+			}
+			getPoller().onWrite(writeByte, 1);
+			log.debug("[session-{}] write data byte:{}", this.session.getId(), writeByte);
+			// 发送缓冲区已满或者已经没有数据
+			if(this.outputBuffer.remaining() > 0 || !this.session.remainOutputData()) break;
+		}
+		if(this.outputBuffer.remaining() == 0) {
+			releaseOutputBuffer();
+			this.session.checkForbidWrite();
+		}
+		return true;
+	}
+	
+	private void releaseOutputBuffer() {
+		if(this.directBufferPool && this.outputBuffer != null) {
+			BufferPool.getInstance().release(this.outputBuffer);
+			this.outputBuffer = null;
+		}
+	}
+	
 	protected void onOpen() {
 		this.session = new IOSession(this);
+		this.getPoller().onOpenChannel();
 		this.getManager().onAddSessionIntern(this.session);
 		this.permitRead();
 	}
@@ -114,6 +175,8 @@ public final class IOTransportor extends IOHandler {
 	@Override
 	protected void onClose() {
 		log.debug("[IOTransportor-{}] onclose", this.session.getId());
+		this.getPoller().onCloseChannel();
+		releaseOutputBuffer();
 		this.getManager().onDelSessionIntern(this.session);
 		this.session.onClose();
 	}
@@ -0,0 +1,146 @@
+package fiber.io;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 多播组. 消息只编码一次, 得到的Octets是不可变的, 所有成员共享.
+ * 成员按所在的IOPoller分区, publish时每个分区作为一个任务交给对应的IOPoller线程发送,
+ * 各IOPoller并行发送, 并且在poller线程里修改写事件不需要wakeup.
+ * join/leave/publish都不需要全局锁, 可以在任意线程调用.
+ * 连接关闭时自动离开所有组.
+ */
+public final class MulticastGroup {
+	private final Object id;
+	private final ConcurrentHashMap<IOPoller, Set<IOSession>> partitions;
+	private final AtomicInteger size;
+	private final AtomicLong publishNum;
+	private final AtomicLong publishBytes;
+	private final AtomicLong fanoutNum;
+	
+	public MulticastGroup(Object id) {
+		this.id = id;
+		this.partitions = new ConcurrentHashMap<IOPoller, Set<IOSession>>();
+		this.size = new AtomicInteger();
+		this.publishNum = new AtomicLong();
+		this.publishBytes = new AtomicLong();
+		this.fanoutNum = new AtomicLong();
+	}
+	
+	public Object getId() {
+		return this.id;
+	}
+	
+	private Set<IOSession> partition(IOPoller poller) {
+		Set<IOSession> members = this.partitions.get(poller);
+		if(members == null) {
+			Set<IOSession> newMembers = Collections.newSetFromMap(new ConcurrentHashMap<IOSession, Boolean>());
+			members = this.partitions.putIfAbsent(poller, newMembers);
+			if(members == null) members = newMembers;
+		}
+		return members;
+	}
+	
+	/**
+	 * @return 如果session已经在组里, 返回false
+	 */
+	public boolean join(IOSession session) {
+		if(!partition(session.getHandler().getPoller()).add(session)) return false;
+		this.size.incrementAndGet();
+		session.onJoin(this);
+		return true;
+	}
+	
+	public boolean leave(IOSession session) {
+		Set<IOSession> members = this.partitions.get(session.getHandler().getPoller());
+		if(members == null || !members.remove(session)) return false;
+		this.size.decrementAndGet();
+		session.onLeave(this);
+		return true;
+	}
+	
+	/**
+	 * 所有成员离开.
+	 */
+	public void clear() {
+		for(Set<IOSession> members : this.partitions.values()) {
+			for(IOSession s : members) {
+				leave(s);
+			}
+		}
+	}
+	
+	public boolean contains(IOSession session) {
+		Set<IOSession> members = this.partitions.get(session.getHandler().getPoller());
+		return members != null && members.contains(session);
+	}
+	
+	public int size() {
+		return this.size.get();
+	}
+	
+	/**
+	 * 发送已编码好的数据. 异步执行, 返回时数据可能还没有放入各成员的发送队列.
+	 */
+	public void publish(final Octets data) {
+		publish(data, false);
+	}
+	
+	/**
+	 * @param droppable 见IOSession.write(Octets, boolean)
+	 */
+	public void publish(final Octets data, final boolean droppable) {
+		this.publishNum.incrementAndGet();
+		this.publishBytes.addAndGet(data.size());
+		for(Map.Entry<IOPoller, Set<IOSession>> e : this.partitions.entrySet()) {
+			final Set<IOSession> members = e.getValue();
+			if(members.isEmpty()) continue;
+			e.getKey().execute(new Runnable() {
+				@Override
+				public void run() {
+					int num = 0;
+					for(IOSession s : members) {
+						s.write(data, droppable);
+						num++;
+					}
+					fanoutNum.addAndGet(num);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * 只编码一次, 然后发送给所有成员.
+	 */
+	public void publish(Bean<?> bean) {
+		publish(BeanCodec.encode(bean), false);
+	}
+	
+	public void publish(Bean<?> bean, boolean droppable) {
+		publish(BeanCodec.encode(bean), droppable);
+	}
+	
+	public long getPublishNum() {
+		return this.publishNum.get();
+	}
+	
+	// publish的数据总字节数. 每条消息只计一次, 不乘以成员数.
+	public long getPublishBytes() {
+		return this.publishBytes.get();
+	}
+	
+	// 实际写入成员发送队列的次数
+	public long getFanoutNum() {
+		return this.fanoutNum.get();
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("MulticastGroup{id=%s, size=%d, publish=%d, publishBytes=%d, fanout=%d}",
+			this.id, size(), getPublishNum(), getPublishBytes(), getFanoutNum());
+	}
+}
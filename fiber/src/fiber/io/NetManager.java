@@ -3,70 +3,298 @@ package fiber.io;
 import java.util.Map;
 
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fiber.bean.AllBeans;
+import fiber.common.TaskPool;
+import fiber.common.TaskQueue;
+import fiber.common.TimingWheel;
 
 import static fiber.io.Log.log;
 
 public class NetManager extends IOManager {
 
-	private final Map<Integer, BeanHandler<?>> handlerStub;
+	private final DispatchTable table;
+	// 所有连接都自动加入, 用于broadcastMessage
+	private final MulticastGroup allGroup = new MulticastGroup("all");
+	private final ConcurrentHashMap<Object, MulticastGroup> groups = new ConcurrentHashMap<Object, MulticastGroup>();
+	private final AtomicLong readPauseNum = new AtomicLong();
+	private final AtomicLong readResumeNum = new AtomicLong();
+	private final AtomicInteger readPausedNum = new AtomicInteger();
 
 	private static class BeanCodecFactory extends ProtocolCodec.Factory {
-		final private Map<Integer, BeanHandler<?>> handlerStub;
-		public BeanCodecFactory(final Map<Integer, BeanHandler<?>> handlerStub) {
-			this.handlerStub = handlerStub;
+		final private DispatchTable table;
+		public BeanCodecFactory(final DispatchTable table) {
+			this.table = table;
 		}
 		@Override
 		public ProtocolCodec createCodec() {
-			return new BeanCodec(handlerStub);
+			return new BeanCodec(table);
 		}
 		
 	}
 	
 	public NetManager(IOPoller e, final Map<Integer, BeanHandler<?>> handlerStub) {
-		super(e,  new BeanCodecFactory(handlerStub));
-		this.handlerStub = handlerStub;
+		this(new IOPollerGroup(e), DispatchTable.create(AllBeans.get(), handlerStub));
+	}
+	
+	public NetManager(IOPollerGroup group, final Map<Integer, BeanHandler<?>> handlerStub) {
+		this(group, DispatchTable.create(AllBeans.get(), handlerStub));
+	}
+	
+	/**
+	 * @param table 一般为genrpc.lua生成的AllHandlers.getTable()
+	 */
+	public NetManager(IOPollerGroup group, final DispatchTable table) {
+		super(group,  new BeanCodecFactory(table));
+		this.table = table;
+	}
+	
+	public final DispatchTable getDispatchTable() {
+		return this.table;
 	}
 
-	synchronized public void broadcastMessage(Object msg) {
+	/**
+	 * 只编码一次, 由各IOPoller并行发送给所有连接.
+	 */
+	public void broadcastMessage(Object msg) {
 		log.debug("broadcast");
-		for(IOSession s : this.getSessions().values()) {
-			s.send(msg);
-		}	
+		this.allGroup.publish((Bean<?>)msg);
 	}
-
-	private static final ConcurrentHashMap<Integer, RpcBean<?, ?>> _rpcs = new ConcurrentHashMap<Integer, RpcBean<?, ?>>(); // 当前管理器等待回复的RPC
-	private final static  ScheduledExecutorService rpcExecutor = Executors.newSingleThreadScheduledExecutor();
-	static {
-		rpcExecutor.scheduleAtFixedRate(
-			new Runnable() {
-				@Override
-				public void run() {
-					int now = Timer.currentTime();
-					for (Map.Entry<Integer, RpcBean<?, ?>> e : _rpcs.entrySet()) {
-						RpcBean<?, ?> rpcbean = e.getValue();
-						if (now - rpcbean.getReqTime() > rpcbean.getTimeout() && _rpcs.remove(e.getKey()) != null) {
-							RpcHandler<?, ?> onclient = rpcbean.getOnClient();
-							IOSession session = rpcbean.getSession();
-							handleTimeout(onclient, session, rpcbean.getArg());
-						}
-					}
+	
+	/**
+	 * 每个连接的消息处理队列. 积压超过高水位时在poller上暂停读该连接, 消化到低水位以下时恢复.
+	 * 暂停读后数据留在内核接收缓冲区里, 由TCP流控限制对端, 不影响其他连接.
+	 */
+	private final class InboundQueue extends TaskQueue {
+		private final IOSession session;
+		private final int highNum;
+		private final int lowNum;
+		private final int highCost;
+		private final int lowCost;
+		// 只在synchronized(this)里修改
+		private volatile boolean paused;
+		
+		InboundQueue(IOSession session, IOConfig config) {
+			super();
+			this.session = session;
+			this.highNum = config.getInQueueHighNum();
+			this.lowNum = config.getInQueueLowNum();
+			this.highCost = config.getInQueueHighCost();
+			this.lowCost = config.getInQueueLowCost();
+		}
+		
+		private boolean overHigh() {
+			return size() > this.highNum || (this.highCost > 0 && getPendingCost() > this.highCost);
+		}
+		
+		private boolean belowLow(int remain) {
+			return remain <= this.lowNum && (this.highCost <= 0 || getPendingCost() <= this.lowCost);
+		}
+		
+		// 在poller线程里, add之后调用
+		void checkPause() {
+			if(this.paused || !overHigh()) return;
+			synchronized(this) {
+				if(this.paused || !overHigh()) return;
+				this.paused = true;
+				this.session.forbidRead();
+				readPauseNum.incrementAndGet();
+				readPausedNum.incrementAndGet();
+				log.debug("[session-{}] pause read. pending:{} cost:{}", this.session.getId(), size(), getPendingCost());
+				// 设置paused之后再检查一次, 防止队列恰好在此之前消化完而没有线程恢复读
+				resume(size());
+			}
+		}
+		
+		@Override
+		protected void afterExecute(int remain) {
+			if(!this.paused || !belowLow(remain)) return;
+			synchronized(this) {
+				resume(size());
+			}
+		}
+		
+		void onClose() {
+			synchronized(this) {
+				if(this.paused) {
+					this.paused = false;
+					readPausedNum.decrementAndGet();
 				}
-		}, Const.rpc_check_timeout_interval, Const.rpc_check_timeout_interval, TimeUnit.SECONDS);
+			}
+		}
+		
+		private void resume(int remain) {
+			if(!this.paused || !belowLow(remain)) return;
+			this.paused = false;
+			this.session.permitRead();
+			readResumeNum.incrementAndGet();
+			readPausedNum.decrementAndGet();
+			log.debug("[session-{}] resume read. pending:{} cost:{}", this.session.getId(), remain, getPendingCost());
+		}
+	}
+	
+	@Override
+	protected void onAddSessionIntern(IOSession s) {
+		if(getConfig().isInTaskQueue()) {
+			s.setTaskQueue(new InboundQueue(s, getConfig()));
+		}
+		this.allGroup.join(s);
+		super.onAddSessionIntern(s);
+	}
+	
+	@Override
+	protected void onDelSessionIntern(IOSession s) {
+		final TaskQueue queue = s.getTaskQueue();
+		if(queue instanceof InboundQueue) {
+			((InboundQueue)queue).onClose();
+		}
+		super.onDelSessionIntern(s);
+	}
+	
+	/**
+	 * @return 如果id已存在, 返回已有的组
+	 */
+	public MulticastGroup createGroup(Object id) {
+		MulticastGroup group = this.groups.get(id);
+		if(group == null) {
+			MulticastGroup newGroup = new MulticastGroup(id);
+			group = this.groups.putIfAbsent(id, newGroup);
+			if(group == null) group = newGroup;
+		}
+		return group;
+	}
+	
+	public MulticastGroup getGroup(Object id) {
+		return this.groups.get(id);
+	}
+	
+	public MulticastGroup removeGroup(Object id) {
+		MulticastGroup group = this.groups.remove(id);
+		if(group != null) {
+			group.clear();
+		}
+		return group;
+	}
+	
+	public boolean joinGroup(Object id, IOSession session) {
+		MulticastGroup group = this.groups.get(id);
+		return group != null && group.join(session);
+	}
+	
+	public boolean leaveGroup(Object id, IOSession session) {
+		MulticastGroup group = this.groups.get(id);
+		return group != null && group.leave(session);
+	}
+	
+	/**
+	 * @return 组不存在时返回false
+	 */
+	public boolean publish(Object id, Bean<?> bean) {
+		MulticastGroup group = this.groups.get(id);
+		if(group == null) return false;
+		group.publish(bean);
+		return true;
+	}
+	
+	public Map<Object, MulticastGroup> getGroups() {
+		return this.groups;
+	}
+	
+	// 因接收队列积压而暂停读的次数
+	public long getReadPauseNum() {
+		return this.readPauseNum.get();
+	}
+	
+	public long getReadResumeNum() {
+		return this.readResumeNum.get();
+	}
+	
+	// 当前处于暂停读状态的连接数
+	public int getReadPausedNum() {
+		return this.readPausedNum.get();
+	}
+
+	private final AtomicLong rpcNum = new AtomicLong();
+	private final AtomicLong rpcReplyNum = new AtomicLong();
+	private final AtomicLong rpcTimeoutNum = new AtomicLong();
+	
+	// 每个RPC一个时间轮定时器. 与回复竞争从连接的RPC表里移除, 成功移除的一方负责完成.
+	private final class RpcTimeout implements Runnable {
+		private final RpcBean<?, ?> rpcbean;
+		RpcTimeout(RpcBean<?, ?> rpcbean) {
+			this.rpcbean = rpcbean;
+		}
+		@Override
+		public void run() {
+			if (this.rpcbean.getSession().removeRpc(this.rpcbean.getRpcId(), this.rpcbean)) {
+				rpcTimeoutNum.incrementAndGet();
+				onRpcTimeout(this.rpcbean);
+			}
+		}
+	}
+	
+	private static <A extends Bean<A>, R extends Bean<R>> void onRpcTimeout(RpcBean<A, R> rpcbean) {
+		final RpcFuture<R> future = rpcbean.getFuture();
+		if (future != null) {
+			future.timeout();
+		} else {
+			handleTimeout(rpcbean.getOnClient(), rpcbean.getSession(), rpcbean.getArg());
+		}
+	}
+	
+	/**
+	 * 收到RPC回复. 只在发出请求的连接的RPC表里查找, 同一连接上可以有多个RPC同时等待回复, 回复顺序任意.
+	 */
+	@SuppressWarnings("unchecked")
+	final <A extends Bean<A>, R extends Bean<R>> void onRpcResponse(IOSession session, RpcBean<A, R> response) throws Exception {
+		final RpcBean<A, R> rpcbean = (RpcBean<A, R>)session.removeRpc(response.getRpcId());
+		if (rpcbean == null) {
+			log.debug("[session-{}] rpc response:{} timeout or cancelled.", session.getId(), response.getRpcId());
+			return;
+		}
+		this.rpcReplyNum.incrementAndGet();
+		if (rpcbean.getTimeoutTask() != null) {
+			rpcbean.getTimeoutTask().cancel();
+		}
+		final RpcFuture<R> future = rpcbean.getFuture();
+		if (future != null) {
+			future.complete(response.getRes());
+		} else {
+			rpcbean.getOnClient().onClient(session, rpcbean.getArg(), response.getRes());
+		}
+	}
+	
+	private void registerRpc(IOSession session, RpcBean<?, ?> rpcbean, int timeoutMillis) {
+		rpcbean.setReqTime(Timer.currentTime());
+		rpcbean.setSession(session);
+		session.addRpc(rpcbean);
+		rpcbean.setTimeoutTask(TimingWheel.getInstance().schedule(new RpcTimeout(rpcbean), timeoutMillis, TimeUnit.MILLISECONDS));
+		session.checkRpcClosed(rpcbean);
+		this.rpcNum.incrementAndGet();
+		session.send(rpcbean); 
 	}
 	
-	public static  RpcBean<?, ?> removeRpc(int rpcid) {
-		return _rpcs.remove(rpcid);
+	public long getRpcNum() {
+		return this.rpcNum.get();
+	}
+	
+	public long getRpcReplyNum() {
+		return this.rpcReplyNum.get();
+	}
+	
+	public long getRpcTimeoutNum() {
+		return this.rpcTimeoutNum.get();
 	}
 	
 	protected static void schedule(Runnable task, long delay) {
-		rpcExecutor.schedule(task, delay, TimeUnit.SECONDS);
+		TimingWheel.getInstance().schedule(task, delay, TimeUnit.SECONDS);
 	}
 	
 	protected static void scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
-		rpcExecutor.scheduleAtFixedRate(task, period, period, TimeUnit.SECONDS);
+		TaskPool.scheduleAtFixedRate(task, initialDelay, period, unit);
 	}
 
 	/**
@@ -84,7 +312,7 @@ public class NetManager extends IOManager {
 	{
 		assert(rpcbean.getArg() != null);
 		rpcbean.setRequest();
-		final RpcHandler<A, R> fhandler = handler != null ? handler : (RpcHandler<A, R>)this.handlerStub.get(rpcbean.type());		
+		final RpcHandler<A, R> fhandler = handler != null ? handler : (RpcHandler<A, R>)this.table.getHandler(rpcbean.type());		
 		rpcbean.setOnClient(fhandler);
 		if(session == null) {
 			NetManager.schedule(new Runnable() {
@@ -96,13 +324,37 @@ public class NetManager extends IOManager {
 			log.error("sendRpc timeout");
 			return false;
 		}
-		rpcbean.setReqTime((int)(System.currentTimeMillis() / 1000));
-		rpcbean.setSession(session);
-		session.send(rpcbean); 
-		_rpcs.put(rpcbean.getRpcId(), rpcbean);
+		registerRpc(session, rpcbean, rpcbean.getTimeoutMillis());
 		return true;
 	}
 	
+	public <A extends Bean<A>, R extends Bean<R>> RpcFuture<R> sendRpcAsync(final IOSession session, final RpcBean<A, R> rpcbean) {
+		return sendRpcAsync(session, rpcbean, rpcbean.getTimeoutMillis());
+	}
+	
+	/**
+	 * 异步RPC. 回复或超时时完成返回的RpcFuture, 不调用RpcHandler.onClient/onTimeout.
+	 * @param timeoutMillis 超时时间(毫秒), 精度为时间轮的tick.
+	 * @return 连接为null时, 返回的RpcFuture会立即(异步)超时.
+	 */
+	public <A extends Bean<A>, R extends Bean<R>> RpcFuture<R> sendRpcAsync(final IOSession session, final RpcBean<A, R> rpcbean, int timeoutMillis) {
+		assert(rpcbean.getArg() != null);
+		rpcbean.setRequest();
+		final RpcFuture<R> future = new RpcFuture<R>(rpcbean);
+		rpcbean.setFuture(future);
+		if(session == null) {
+			TimingWheel.getInstance().schedule(new Runnable() {
+				@Override
+				public void run() {
+					future.timeout();
+				}
+			}, 0, TimeUnit.MILLISECONDS);
+			return future;
+		}
+		registerRpc(session, rpcbean, timeoutMillis);
+		return future;
+	}
+	
 	private static <A extends Bean<A>, R extends Bean<R>> 
 	void handleTimeout(final RpcHandler<A, R> handler, final IOSession session, final Object arg) {
 		try {
@@ -117,10 +369,34 @@ public class NetManager extends IOManager {
 		return sendRpc(session, rpcbean, null);
 	}
 
+	/**
+	 * 消息在接收队列里的估计开销, 只在设置了io_in_cost_high时使用. 默认每条消息为1,
+	 * 可以按消息类型覆盖, 比如给耗时的请求更大的开销.
+	 */
+	protected int estimateCost(IOSession session, Bean<?> bean) {
+		return 1;
+	}
+	
 	@Override
 	public void onReceiveMessage(final IOSession session, Object message) {
 		final Bean<?> bean = (Bean<?>)message;
-		final BeanHandler<?> handler = this.handlerStub.get(bean.type());
+		final TaskQueue queue = session.getTaskQueue();
+		if(queue instanceof InboundQueue) {
+			final InboundQueue inbound = (InboundQueue)queue;
+			inbound.add(new Runnable() {
+				@Override
+				public void run() {
+					process(session, bean);
+				}
+			}, inbound.highCost > 0 ? estimateCost(session, bean) : 0);
+			inbound.checkPause();
+		} else {
+			process(session, bean);
+		}
+	}
+	
+	private void process(IOSession session, Bean<?> bean) {
+		final BeanHandler<?> handler = this.table.getHandler(bean.type());
 		try {
 			handler.process(session, bean);
 		} catch (Exception e) {
@@ -154,6 +154,24 @@ public final class OctetsStream {
 		this.tail += getSize;
 	}
 	
+	public final int capacity() {
+		return this.data.length;
+	}
+	
+	/**
+	 * 缩小容量, 但不会小于当前数据大小.
+	 */
+	public final void shrink(int capacity) {
+		final int size = this.tail - this.head;
+		if(capacity < size) capacity = size;
+		if(capacity >= this.data.length) return;
+		byte[] newData = capacity > 0 ? new byte[capacity] : EMPTY;
+		System.arraycopy(this.data, this.head, newData, 0, size);
+		this.data = newData;
+		this.head = 0;
+		this.tail = size;
+	}
+	
 	public final void reserve(int size) {
 		//Log.debug("reserve:%d head:%d tail:%d length:%d", size, head, tail, data.length);
 		if(size + this.tail > this.data.length) {
@@ -1,6 +1,10 @@
 package fiber.io;
 
 public abstract class ProtocolCodec {
+	/**
+	 * 解码is里所有完整的帧, 不完整的帧留在is里(head指向其开头).
+	 * is可能直接引用读缓冲区, decode返回后其数据即失效, 不能保留对它的引用.
+	 */
 	public abstract void decode(IOSession session, OctetsStream is);
 	public abstract Octets encode(IOSession session, Object obj);
 	public static abstract class Factory {
@@ -2,6 +2,8 @@ package fiber.io;
 
 import java.util.concurrent.atomic.AtomicInteger;
 
+import fiber.common.TimingWheel;
+
 /**
  * RPC类型的bean(抽象类)
  * <p>
@@ -13,6 +15,8 @@ public abstract class RpcBean<A extends Bean<A>, R extends Bean<R>> implements B
 	private int _reqtime; 												// 发送请求的时间戳(秒)
 	private IOSession _session; 										// 请求时绑定的session
 	private RpcHandler<A, R> _onclient; 								// 回复的回调
+	private volatile TimingWheel.Timeout _timeouttask;					// 超时定时器
+	private RpcFuture<R> _future;										// 异步RPC的结果, 见NetManager.sendRpcAsync
 	protected A arg; 													// 请求bean
 	protected R res; 													// 回复bean
 
@@ -25,6 +29,12 @@ public abstract class RpcBean<A extends Bean<A>, R extends Bean<R>> implements B
 	public final RpcHandler<A, R> getOnClient() { return _onclient; }
 	protected final void setOnClient(RpcHandler<A, R> handler) { _onclient = handler; }
 
+	final TimingWheel.Timeout getTimeoutTask() { return _timeouttask; }
+	final void setTimeoutTask(TimingWheel.Timeout task) { _timeouttask = task; }
+
+	final RpcFuture<R> getFuture() { return _future; }
+	final void setFuture(RpcFuture<R> future) { _future = future; }
+
 	public final int getRpcId() { return _rpcid & 0x7fffffff; }
 	public final boolean isRequest() { return _rpcid >= 0; }
 	public final void setRequest() { _rpcid &= 0x7fffffff; }
@@ -36,6 +46,8 @@ public abstract class RpcBean<A extends Bean<A>, R extends Bean<R>> implements B
 	public final void setRes(R r) {	res = r; }
 
 	public int getTimeout() { return 10; }
+	// 超时时间(毫秒). 默认为getTimeout()秒, 需要更精确时覆盖此方法.
+	public int getTimeoutMillis() { return getTimeout() * 1000; }
 
 	public abstract A createArg();
 	public abstract R createRes();
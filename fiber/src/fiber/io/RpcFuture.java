@@ -0,0 +1,161 @@
+package fiber.io;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static fiber.io.Log.log;
+
+/**
+ * 异步RPC的结果, 见NetManager.sendRpcAsync.
+ * 可以阻塞get, 也可以addListener在完成(回复,超时,取消)时回调.
+ * 回调在完成它的线程里执行: 回复时为处理该连接消息的线程, 超时时为时间轮的执行线程.
+ * 如果addListener时已经完成, 在调用线程里立即执行.
+ */
+public final class RpcFuture<R extends Bean<R>> implements Future<R> {
+	public interface Listener<R extends Bean<R>> {
+		void onComplete(RpcFuture<R> future);
+	}
+
+	private static final int PENDING = 0;
+	private static final int DONE = 1;
+	private static final int TIMEOUT = 2;
+	private static final int CANCELLED = 3;
+
+	private final RpcBean<?, R> rpcbean;
+	private int state;
+	private R result;
+	private ArrayList<Listener<R>> listeners;
+
+	RpcFuture(RpcBean<?, R> rpcbean) {
+		this.rpcbean = rpcbean;
+	}
+
+	public RpcBean<?, R> getRpcBean() {
+		return this.rpcbean;
+	}
+
+	void complete(R res) {
+		finish(DONE, res);
+	}
+
+	void timeout() {
+		finish(TIMEOUT, null);
+	}
+
+	private void finish(int newState, R res) {
+		final ArrayList<Listener<R>> ls;
+		synchronized(this) {
+			if(this.state != PENDING) return;
+			this.state = newState;
+			this.result = res;
+			ls = this.listeners;
+			this.listeners = null;
+			notifyAll();
+		}
+		if(ls != null) {
+			for(Listener<R> l : ls) {
+				notify(l);
+			}
+		}
+	}
+
+	private void notify(Listener<R> l) {
+		try {
+			l.onComplete(this);
+		} catch(Exception e) {
+			log.error("RpcFuture.onComplete. listener:{} rpc:{}", l, this.rpcbean, e);
+		}
+	}
+
+	public void addListener(Listener<R> listener) {
+		synchronized(this) {
+			if(this.state == PENDING) {
+				if(this.listeners == null) {
+					this.listeners = new ArrayList<Listener<R>>(1);
+				}
+				this.listeners.add(listener);
+				return;
+			}
+		}
+		notify(listener);
+	}
+
+	/**
+	 * 取消等待. 之后收到的回复被忽略, 也不会再超时.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized(this) {
+			if(this.state != PENDING) return false;
+		}
+		final IOSession session = this.rpcbean.getSession();
+		if(session != null) {
+			session.removeRpc(this.rpcbean.getRpcId());
+		}
+		if(this.rpcbean.getTimeoutTask() != null) {
+			this.rpcbean.getTimeoutTask().cancel();
+		}
+		finish(CANCELLED, null);
+		return isCancelled();
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return this.state == CANCELLED;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return this.state != PENDING;
+	}
+
+	public synchronized boolean isTimeout() {
+		return this.state == TIMEOUT;
+	}
+
+	public synchronized boolean isSuccess() {
+		return this.state == DONE;
+	}
+
+	/**
+	 * @return 回复, 还未完成或者没有成功时返回null
+	 */
+	public synchronized R getNow() {
+		return this.result;
+	}
+
+	@Override
+	public synchronized R get() throws InterruptedException, ExecutionException {
+		while(this.state == PENDING) {
+			wait();
+		}
+		return report();
+	}
+
+	@Override
+	public synchronized R get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		long remain = unit.toNanos(timeout);
+		final long deadline = System.nanoTime() + remain;
+		while(this.state == PENDING) {
+			if(remain <= 0) throw new TimeoutException();
+			TimeUnit.NANOSECONDS.timedWait(this, remain);
+			remain = deadline - System.nanoTime();
+		}
+		return report();
+	}
+
+	private R report() throws ExecutionException {
+		if(this.state == DONE) return this.result;
+		if(this.state == CANCELLED) throw new CancellationException();
+		throw new ExecutionException(new TimeoutException("rpc timeout. rpcid:" + this.rpcbean.getRpcId()));
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "RpcFuture{rpcid=" + this.rpcbean.getRpcId() + ", state=" + this.state + ", result=" + this.result + "}";
+	}
+}
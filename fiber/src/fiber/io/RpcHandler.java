@@ -38,12 +38,7 @@ public abstract class RpcHandler<A extends Bean<A>, R extends Bean<R>> extends B
 				session.send(rpcbean);
 			}
 		} else {
-			@SuppressWarnings("unchecked")
-			RpcBean<A, R> rpcbean_old = (RpcBean<A, R>) NetManager.removeRpc(rpcbean.getRpcId());
-			if (rpcbean_old != null) {
-				RpcHandler<A, R> onClient = rpcbean_old.getOnClient();
-				onClient.onClient(session, rpcbean_old.getArg(), rpcbean.getRes());
-			}
+			((NetManager)session.getHandler().getManager()).onRpcResponse(session, rpcbean);
 		}
 	}
 	
@@ -9,6 +9,14 @@ public class ServerManager extends NetManager {
 		super(e, handlerStub);
 	}
 	
+	public ServerManager(IOPollerGroup group, Map<Integer, BeanHandler<?>> handlerStub) {
+		super(group, handlerStub);
+	}
+	
+	public ServerManager(IOPollerGroup group, DispatchTable table) {
+		super(group, table);
+	}
+	
 	Acceptor acceptor;
 	@Override
 	public Acceptor startServer() throws IOException {
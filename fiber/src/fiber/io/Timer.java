@@ -1,19 +1,37 @@
 package fiber.io;
 
+/**
+ * 粗粒度的缓存时钟. 由一个后台线程每timer_precision_ms毫秒更新一次,
+ * currentTime/currentTimeMillis只是读取一个volatile变量, 不再每次调用System.currentTimeMillis.
+ * 需要精确时间时使用preciseTimeMillis. timer_cached_clock=0时关闭缓存.
+ */
 public final class Timer {
-	/*
-	private static volatile int now = (int)(System.currentTimeMillis() / 1000);
+	private static final boolean timer_cached_clock = Const.getProperty("timer_cached_clock", 1) != 0;
+	private static final int timer_precision_ms = Const.getProperty("timer_precision_ms", 5, 1, 1000);
+	private static volatile long nowMillis = System.currentTimeMillis();
+	private static volatile int now = (int)(nowMillis / 1000);
 	static {
-		NetManager.scheduleAtFixedRate(new Runnable() {
-			@Override
-			public void run() {
-				now = (int)System.currentTimeMillis() / 1000;
-			}
-			
-		}, 1, 1, TimeUnit.SECONDS);
+		if(timer_cached_clock) {
+			Thread t = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while(true) {
+						try {
+							Thread.sleep(timer_precision_ms);
+						} catch (InterruptedException e) {
+						}
+						final long millis = System.currentTimeMillis();
+						nowMillis = millis;
+						now = (int)(millis / 1000);
+					}
+				}
+			}, "Timer-clock");
+			t.setDaemon(true);
+			t.start();
+		}
 	}
-	public static int currentTime() { return now; }
-	*/
-	public static int currentTime() { return (int)(System.currentTimeMillis() / 1000); }
-	public static long currentTimeMillis() { return System.currentTimeMillis(); }
+	
+	public static int currentTime() { return timer_cached_clock ? now : (int)(System.currentTimeMillis() / 1000); }
+	public static long currentTimeMillis() { return timer_cached_clock ? nowMillis : System.currentTimeMillis(); }
+	public static long preciseTimeMillis() { return System.currentTimeMillis(); }
 }
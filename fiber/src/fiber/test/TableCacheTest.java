@@ -0,0 +1,121 @@
+package fiber.test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import fiber.db.Enviroment;
+import fiber.db.SegmentedLruCache;
+import fiber.db.TValue;
+import fiber.db.Table;
+import fiber.db.Table.ShrinkPolicy;
+import fiber.db.TableCache;
+import fiber.db.TableMem;
+import fiber.db.TinyLfuCache;
+import static fiber.io.Log.log;
+
+/**
+ * 淘汰引擎的检查: 热key不会被一次遍历挤出, ShrinkPolicy拒绝的key仍留在引擎里, 全部删除后getBytes归零.
+ */
+public final class TableCacheTest {
+	private static final int MAXSIZE = 100;
+	private static final int HOT = 10;
+
+	private static final class PinPolicy implements ShrinkPolicy {
+		final Set<Object> pinned = new HashSet<Object>();
+		@Override
+		public boolean check(Object key, TValue value) {
+			return !this.pinned.contains(key);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		testScan(new SegmentedLruCache(MAXSIZE));
+		testScan(new TinyLfuCache(MAXSIZE));
+		testRefused(new SegmentedLruCache(MAXSIZE));
+		testRefused(new TinyLfuCache(MAXSIZE));
+		testBytes(new SegmentedLruCache(MAXSIZE));
+		testBytes(new TinyLfuCache(MAXSIZE));
+		log.info("TableCacheTest all passed.");
+		System.exit(0);
+	}
+
+	private static Table newTable(TableCache cache, PinPolicy policy) {
+		return new TableMem(1, MAXSIZE, Enviroment.IntMarshaller, Enviroment.IntMarshaller, policy, cache);
+	}
+
+	private static void put(Table table, int key) {
+		table.put(key, new TValue(key));
+		if(table.overmaxsize()) {
+			table.shrink();
+		}
+	}
+
+	/**
+	 * 经常访问的key在一次性遍历10倍容量的key之后仍然在缓存里.
+	 */
+	private static void testScan(TableCache cache) throws Exception {
+		Table table = newTable(cache, new PinPolicy());
+		for(int i = 0 ; i < MAXSIZE ; i++) {
+			put(table, i);
+		}
+		for(int n = 0 ; n < 20 ; n++) {
+			for(int i = 0 ; i < HOT ; i++) {
+				table.get(i);
+			}
+		}
+		for(int i = MAXSIZE ; i < MAXSIZE * 11 ; i++) {
+			put(table, i);
+		}
+		for(int i = 0 ; i < HOT ; i++) {
+			check(table.getDataMap().containsKey(i), cache + " hot key evicted by scan. key:" + i);
+		}
+		check(table.size() <= MAXSIZE, cache + " size over maxsize. size:" + table.size());
+		log.info("testScan ok. {} size:{} evict:{}", cache, table.size(), table.getEvictNum());
+	}
+
+	/**
+	 * 被拒绝淘汰的key留在原处, 之后policy同意时仍然可以淘汰.
+	 */
+	private static void testRefused(TableCache cache) throws Exception {
+		PinPolicy policy = new PinPolicy();
+		Table table = newTable(cache, policy);
+		for(int i = 0 ; i < MAXSIZE * 2 ; i += 2) {
+			policy.pinned.add(i);
+		}
+		for(int i = 0 ; i < MAXSIZE * 2 ; i++) {
+			table.put(i, new TValue(i));
+		}
+		table.shrink(MAXSIZE, 0);
+		for(int i = 0 ; i < MAXSIZE * 2 ; i++) {
+			check(table.getDataMap().containsKey(i) == (i % 2 == 0), cache + " wrong key evicted. key:" + i);
+		}
+		policy.pinned.clear();
+		int removed = table.shrink(MAXSIZE / 2, 0);
+		check(removed == MAXSIZE / 2, cache + " refused keys unlinked. removed:" + removed);
+		check(table.size() == MAXSIZE / 2, cache + " size:" + table.size());
+		log.info("testRefused ok. {} size:{} evict:{}", cache, table.size(), table.getEvictNum());
+	}
+
+	/**
+	 * 淘汰和删除都会释放占用的字节数, 全部删除后归零.
+	 */
+	private static void testBytes(TableCache cache) throws Exception {
+		Table table = newTable(cache, new PinPolicy());
+		for(int i = 0 ; i < MAXSIZE * 3 ; i++) {
+			put(table, i);
+			// 覆盖写入, 旧value的字节数也要释放
+			if(i % 7 == 0) table.put(i, new TValue(i + 1));
+		}
+		check(table.getBytes() > 0, cache + " no bytes counted.");
+		for(int i = 0 ; i < MAXSIZE * 3 ; i++) {
+			table.remove(i);
+		}
+		check(table.size() == 0, cache + " size:" + table.size());
+		check(table.getBytes() == 0, cache + " bytes not released. bytes:" + table.getBytes());
+		log.info("testBytes ok. {}", cache);
+	}
+
+	private static void check(boolean ok, String msg) {
+		if(!ok) throw new IllegalStateException(msg);
+	}
+}
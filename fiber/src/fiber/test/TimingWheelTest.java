@@ -0,0 +1,99 @@
+package fiber.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import fiber.common.TimingWheel;
+import fiber.common.TimingWheel.Timeout;
+import static fiber.io.Log.log;
+
+/**
+ * 时间轮的检查: 跨层下放(cascade), 超出最大范围的长延时, 触发前取消, 触发顺序与延迟上限.
+ * 1ms一个tick, 每层16个槽, 3层: 第0层16ms, 第1层256ms, 第2层4096ms, 再远的定时器需要多次下放.
+ */
+public final class TimingWheelTest {
+	private static final int TICK_MS = 1;
+	// 允许的最大延迟. tick线程的sleep精度与GC都会带来额外的延迟.
+	private static final long LATE_MS = 50;
+	private static final long[] DELAYS = { 0, 3, 15, 17, 100, 255, 257, 600, 1500, 4095, 4097, 6000 };
+	private static final long[] CANCELS = { 10, 300, 5000 };
+
+	private static final class Fire {
+		final long delay;
+		final long actual;
+		Fire(long delay, long actual) {
+			this.delay = delay;
+			this.actual = actual;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		final TimingWheel wheel = new TimingWheel("TimingWheelTest", TICK_MS, 4, 3, null);
+		final List<Fire> fires = new ArrayList<Fire>();
+		final CountDownLatch done = new CountDownLatch(DELAYS.length);
+		final long start = System.nanoTime();
+		final List<Timeout> timeouts = new ArrayList<Timeout>();
+		for(int i = DELAYS.length - 1 ; i >= 0 ; i--) {
+			final long delay = DELAYS[i];
+			timeouts.add(wheel.schedule(new Runnable() {
+				@Override
+				public void run() {
+					synchronized(fires) {
+						fires.add(new Fire(delay, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+					}
+					done.countDown();
+				}
+			}, delay, TimeUnit.MILLISECONDS));
+		}
+		final List<Timeout> cancels = new ArrayList<Timeout>();
+		for(final long delay : CANCELS) {
+			cancels.add(wheel.schedule(new Runnable() {
+				@Override
+				public void run() {
+					throw new IllegalStateException("cancelled timeout fired. delay:" + delay);
+				}
+			}, delay, TimeUnit.MILLISECONDS));
+		}
+		// 还在added队列里时取消
+		check(cancels.get(0).cancel(), "cancel before placed fail");
+		// 放入第1层后取消
+		Thread.sleep(20);
+		check(cancels.get(1).cancel(), "cancel in level 1 fail");
+		// 从第2层下放之后取消
+		Thread.sleep(4500);
+		check(cancels.get(2).cancel(), "cancel after cascade fail");
+
+		check(done.await(DELAYS[DELAYS.length - 1] + 1000, TimeUnit.MILLISECONDS), "timeout not fired. fired:" + fires.size());
+		// 等取消的定时器也过了到期时间
+		Thread.sleep(Math.max(CANCELS[CANCELS.length - 1] + 100 - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), 0));
+
+		long last = -1;
+		for(int i = 0 ; i < fires.size() ; i++) {
+			final Fire f = fires.get(i);
+			check(f.delay == DELAYS[i], "fire order. expect:" + DELAYS[i] + " actual:" + f.delay);
+			check(f.actual >= f.delay, "fire early. delay:" + f.delay + " actual:" + f.actual);
+			check(f.actual - f.delay <= LATE_MS, "fire late. delay:" + f.delay + " actual:" + f.actual);
+			check(f.actual >= last, "fire time go back. delay:" + f.delay);
+			last = f.actual;
+			log.info("fire delay:{}ms actual:{}ms", f.delay, f.actual);
+		}
+		for(Timeout t : timeouts) {
+			check(t.isExpired() && !t.cancel(), "expired timeout cancelled. " + t);
+		}
+		for(Timeout t : cancels) {
+			check(t.isCancelled() && !t.isExpired(), "cancelled timeout state. " + t);
+		}
+		check(wheel.getExpireNum() == DELAYS.length, "expire num:" + wheel.getExpireNum());
+		check(wheel.getCancelNum() == CANCELS.length, "cancel num:" + wheel.getCancelNum());
+		check(wheel.getCascadeNum() > 0, "no cascade.");
+		check(wheel.getPendingNum() == 0, "pending num:" + wheel.getPendingNum());
+		log.info("TimingWheelTest all passed. {}", wheel);
+		System.exit(0);
+	}
+
+	private static void check(boolean ok, String msg) {
+		if(!ok) throw new IllegalStateException(msg);
+	}
+}
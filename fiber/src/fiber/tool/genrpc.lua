@@ -164,17 +164,30 @@ package fiber.handler.$(handler.path);
 
 import java.util.Map;
 import java.util.HashMap;
+import fiber.io.Bean;
 import fiber.io.BeanHandler;
+import fiber.io.DispatchTable;
 
 public final class AllHandlers {
 	private final static Map<Integer, BeanHandler<?>> allhandlers = new HashMap<Integer, BeanHandler<?>>();
+	private final static DispatchTable table = new DispatchTable($(handlers_max_type));
 	static {
 $(handlers_stub)
 	}
 
+	private static void register(int type, Bean<?> stub, BeanHandler<?> handler) {
+		allhandlers.put(type, handler);
+		table.put(type, stub, handler);
+	}
+
 	public static Map<Integer, BeanHandler<?>> get() {
 		return allhandlers;
 	}
+
+	// 按类型直接索引的分发表, 每个类型预先绑定了bean的stub与处理器
+	public static DispatchTable getTable() {
+		return table;
+	}
 }
 ]=]
 
@@ -683,11 +696,19 @@ context.handlers_stub = function(ctx)
 	local s = {}
 	local handler = ctx.handler
 	for _, bean in pairs(handler.beans) do
-		table.insert(s, string.format("\t\tallhandlers.put(%s, new %sHandler());", bean.type, bean.name))
+		table.insert(s, string.format("\t\tregister(%s, fiber.bean.%s.STUB, new %sHandler());", bean.type, bean.name, bean.name))
 	end
 	return table.concat(s, "\n")
 end
 
+context.handlers_max_type = function(ctx)
+	local max = 0
+	for _, bean in pairs(ctx.handler.beans) do
+		if bean.type > max then max = bean.type end
+	end
+	return tostring(max)
+end
+
 context.helper_imports = function(ctx)
 	local imports = {
 		"fiber.io.*",